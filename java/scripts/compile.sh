@@ -5,9 +5,11 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Hotel.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Hotel $USER"_DB" $PGPORT $USER
+#Set PGREPLICAS to a comma separated list of replica ports (or host:port) to send reads to them
+#Set PGSHARDS to a comma separated list of the databases of shards 1 and up (see sql/scripts/create_shards.sh)
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Hotel $USER"_DB" $PGPORT $USER $PGREPLICAS ${PGSHARDS:+shards=$PGSHARDS}
 
@@ -0,0 +1,12 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#generate a synthetic data set in the format of data/*.csv
+#Usage: generate_data.sh <output dir> [scale] [seed] [threads]
+java -cp $DIR/../classes DataGenerator "$@"
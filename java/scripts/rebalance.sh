@@ -0,0 +1,12 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#move hotels between the shards in PGSHARDS (see sql/scripts/create_shards.sh)
+#Usage: rebalance.sh status | plan | balance | clean | sync | move <hotelID>[,...] <shard>
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ShardRebalancer $USER"_DB" $PGPORT $USER $PGSHARDS "$@"
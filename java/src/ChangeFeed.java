@@ -0,0 +1,399 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class follows the ChangeFeed table (see create_change_feed.sql) on a
+ * dedicated connection and hands every batch of new changes to the
+ * registered listeners, so in-process state of this JVM can follow writes
+ * made by any instance.
+ *
+ * The connection LISTENs on 'hotel_changes' and the notifications only wake
+ * the follower up; the changes themselves are read from the table by
+ * sequence number. Sequence numbers that are skipped (a transaction that
+ * has not committed yet, or rolled back) are remembered as holes, with the
+ * xmax of a snapshot taken after the hole was noticed: the transaction that
+ * took the number had its txid by then. A hole is read again until it shows
+ * up or every transaction below that xmax has ended (the snapshot xmin has
+ * passed it), after which it was rolled back and is dropped. After a lost
+ * connection listeners are told to drop everything and reload.
+ *
+ * A follower starts at the sequence's last value, with the numbers just
+ * below it that are not in the table yet as holes, so changes committing
+ * while it starts are not missed. Every follower records in
+ * ChangeFeedConsumers how far it has read, and rows every live follower has
+ * read are deleted from ChangeFeed, except the newest one.
+ *
+ */
+public class ChangeFeed {
+
+   private static final String CHANNEL = "hotel_changes";
+   private static final long POLL_MILLIS = 100;
+   // re-read the table this often even without a notification, to fill holes
+   private static final long IDLE_FETCH_MILLIS = 2000;
+   // how far below the sequence's last value a new follower looks for holes
+   private static final int START_HOLE_WINDOW = 1000;
+   // a hole whose snapshot xmax is not known yet
+   private static final long UNSETTLED = Long.MAX_VALUE;
+   // how often to record our position and prune what everyone has read
+   private static final long REPORT_MILLIS = 30000;
+   // followers that have not recorded a position for this long are gone
+   private static final String CONSUMER_TIMEOUT = "10 minutes";
+   // more holes than this means we fell too far behind; resync instead
+   private static final int MAX_HOLES = 10000;
+   private static final int BATCH_SIZE = 5000;
+
+   /**
+    * One row of the ChangeFeed table.
+    */
+   public static class ChangeEvent {
+      public final long seq;
+      public final String table;
+      public final char op;
+      public final int hotelID;
+      public final Integer roomNumber;
+      public final String bookingDate;
+
+      ChangeEvent(long seq, String table, char op, int hotelID, Integer roomNumber, String bookingDate) {
+         this.seq = seq;
+         this.table = table;
+         this.op = op;
+         this.hotelID = hotelID;
+         this.roomNumber = roomNumber;
+         this.bookingDate = bookingDate;
+      }
+   }
+
+   /**
+    * Receives the changes. Both methods are called on the follower thread.
+    */
+   public interface Listener {
+      void apply(List<ChangeEvent> events);
+      void resync();
+   }
+
+   private final String url;
+   private final String user;
+   private final String passwd;
+   private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+   private Connection connection = null;
+   private Thread follower = null;
+   private volatile boolean running = false;
+   // our row in ChangeFeedConsumers, 0 before the first connect
+   private long consumerID = 0;
+
+   // highest sequence number read so far
+   private long maxSeen = 0;
+   // sequence numbers below maxSeen not read yet, with the snapshot xmax they wait for
+   private final TreeMap<Long, Long> holes = new TreeMap<Long, Long>();
+
+   // statistics
+   private volatile long eventCount = 0;
+   private volatile long batchCount = 0;
+   private volatile long gapCount = 0;
+   private volatile long resyncCount = 0;
+   private volatile int openHoles = 0;
+   private volatile double lagSum = 0.0;
+   private volatile double lagMax = 0.0;
+
+   public ChangeFeed(String url, String user, String passwd) {
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+   }
+
+   public void addListener(Listener listener) {
+      listeners.add(listener);
+   }
+
+   /**
+    * Connects and starts following the feed from its current end.
+    *
+    * @throws java.sql.SQLException when the feed cannot be reached
+    */
+   public void start() throws SQLException {
+      connect();
+      running = true;
+      follower = new Thread(new Runnable() {
+         public void run() {
+            follow();
+         }
+      }, "change-feed");
+      follower.setDaemon(true);
+      follower.start();
+   }
+
+   public void stop() {
+      running = false;
+      if (follower != null) {
+         follower.interrupt();
+      }
+      closeConnection();
+   }
+
+   private void connect() throws SQLException {
+      connection = DriverManager.getConnection(url, user, passwd);
+      Statement stmt = connection.createStatement();
+      try {
+         stmt.executeUpdate("LISTEN " + CHANNEL);
+         holes.clear();
+         ResultSet rs = stmt.executeQuery(
+            "SELECT CASE WHEN is_called THEN last_value ELSE last_value - 1 END FROM changefeed_seq_seq");
+         rs.next();
+         maxSeen = rs.getLong(1);
+         // numbers taken before maxSeen whose rows are not visible yet may still commit
+         for (long seq = Math.max(1, maxSeen - START_HOLE_WINDOW + 1); seq <= maxSeen; seq++) {
+            holes.put(seq, UNSETTLED);
+         }
+         rs = stmt.executeQuery(String.format("SELECT seq FROM ChangeFeed WHERE seq > %d", maxSeen - START_HOLE_WINDOW));
+         while (rs.next()) {
+            holes.remove(rs.getLong(1));
+         }
+         long xmax = snapshot()[1];
+         for (Map.Entry<Long, Long> hole : holes.entrySet()) {
+            hole.setValue(xmax);
+         }
+         if (consumerID != 0) {
+            // the position recorded before a reconnect means nothing now
+            stmt.executeUpdate("DELETE FROM ChangeFeedConsumers WHERE consumerID = " + consumerID);
+         }
+         rs = stmt.executeQuery("SELECT nextval('changefeedconsumers_consumerid_seq')");
+         rs.next();
+         consumerID = rs.getLong(1);
+         stmt.executeUpdate(String.format("INSERT INTO ChangeFeedConsumers (consumerID, seq) VALUES (%d, %d)",
+                                          consumerID, maxSeen));
+      } finally {
+         stmt.close();
+      }
+   }
+
+   /**
+    * @return the xmin and xmax of a snapshot taken now
+    */
+   private long[] snapshot() throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(
+            "SELECT txid_snapshot_xmin(s), txid_snapshot_xmax(s) FROM txid_current_snapshot() s");
+         rs.next();
+         return new long[] { rs.getLong(1), rs.getLong(2) };
+      } finally {
+         stmt.close();
+      }
+   }
+
+   private void follow() {
+      long lastFetch = 0;
+      long lastReport = System.currentTimeMillis();
+      while (running) {
+         try {
+            boolean notified = drainNotifications();
+            long now = System.currentTimeMillis();
+            if (notified || now - lastFetch >= IDLE_FETCH_MILLIS) {
+               while (fetch() == BATCH_SIZE) {
+                  // keep reading while we are behind
+               }
+               lastFetch = now;
+            }
+            if (now - lastReport >= REPORT_MILLIS) {
+               report();
+               lastReport = now;
+            }
+            Thread.sleep(POLL_MILLIS);
+         }catch (InterruptedException e){
+            return;
+         }catch (SQLException e){
+            if (!running) {
+               return;
+            }
+            System.err.println("Change feed connection lost: " + e.getMessage());
+            reconnect();
+         }
+      }
+   }
+
+   /**
+    * The driver only picks up notifications while talking to the server,
+    * so send it an empty query first.
+    */
+   private boolean drainNotifications() throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         stmt.executeQuery("SELECT 1").close();
+      } finally {
+         stmt.close();
+      }
+      PGNotification[] notifications = ((PGConnection) connection).getNotifications();
+      return notifications != null && notifications.length > 0;
+   }
+
+   /**
+    * Reads the holes that have committed since the last fetch and the next
+    * batch of new changes, and hands them to the listeners. Holes whose
+    * transactions had all ended before this read and are still missing are
+    * dropped.
+    *
+    * @return the number of new changes read
+    */
+   private int fetch() throws SQLException {
+      String columns = "SELECT seq, tableName, op, hotelID, roomNumber, bookingDate, " +
+                       "EXTRACT(EPOCH FROM clock_timestamp() - changedOn) FROM ChangeFeed ";
+      List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+      List<Long> settled = new ArrayList<Long>();
+      if (!holes.isEmpty()) {
+         long[] snapshot = snapshot();
+         for (Map.Entry<Long, Long> hole : holes.entrySet()) {
+            if (hole.getValue() == UNSETTLED) {
+               // noticed by an earlier read, so its transaction had a txid below this xmax
+               hole.setValue(snapshot[1]);
+            } else if (hole.getValue() <= snapshot[0]) {
+               settled.add(hole.getKey());
+            }
+         }
+      }
+      if (!holes.isEmpty()) {
+         StringBuilder inList = new StringBuilder();
+         for (Long seq : holes.keySet()) {
+            inList.append(inList.length() == 0 ? "" : ",").append(seq);
+         }
+         read(columns + "WHERE seq IN (" + inList + ")", events);
+      }
+      int rows = read(String.format("%sWHERE seq > %d ORDER BY seq LIMIT %d", columns, maxSeen, BATCH_SIZE), events);
+      // ended before the read above without showing up in it: rolled back
+      for (Long seq : settled) {
+         holes.remove(seq);
+      }
+
+      if (holes.size() > MAX_HOLES) {
+         holes.clear();
+         resync();
+      } else if (!events.isEmpty()) {
+         eventCount += events.size();
+         batchCount++;
+         for (Listener listener : listeners) {
+            listener.apply(events);
+         }
+      }
+      openHoles = holes.size();
+      return rows;
+   }
+
+   private int read(String query, List<ChangeEvent> events) throws SQLException {
+      int rows = 0;
+      Statement stmt = connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(query);
+         while (rs.next()) {
+            rows++;
+            long seq = rs.getLong(1);
+            if (seq <= maxSeen && holes.remove(seq) == null) {
+               continue; // already applied
+            }
+            if (seq > maxSeen + 1) {
+               gapCount++;
+               for (long missing = maxSeen + 1; missing < seq && holes.size() <= MAX_HOLES; missing++) {
+                  holes.put(missing, UNSETTLED);
+               }
+            }
+            maxSeen = Math.max(maxSeen, seq);
+
+            int room = rs.getInt(5);
+            Integer roomNumber = rs.wasNull() ? null : Integer.valueOf(room);
+            events.add(new ChangeEvent(seq, rs.getString(2).trim(), rs.getString(3).charAt(0),
+                                       rs.getInt(4), roomNumber, rs.getString(6)));
+            double lag = rs.getDouble(7);
+            lagSum += lag;
+            lagMax = Math.max(lagMax, lag);
+         }
+      } finally {
+         stmt.close();
+      }
+      return rows;
+   }
+
+   /**
+    * Records how far this follower has read (everything up to the first
+    * hole), forgets followers that stopped recording, and deletes the rows
+    * all remaining followers have read but the newest of them.
+    */
+   private void report() throws SQLException {
+      long consumed = holes.isEmpty() ? maxSeen : holes.firstKey() - 1;
+      Statement stmt = connection.createStatement();
+      try {
+         if (stmt.executeUpdate(String.format(
+               "UPDATE ChangeFeedConsumers SET seq = %d, seenOn = now() WHERE consumerID = %d", consumed, consumerID)) == 0) {
+            // timed out while stalled; rows deleted meanwhile show up as holes
+            stmt.executeUpdate(String.format("INSERT INTO ChangeFeedConsumers (consumerID, seq) VALUES (%d, %d)",
+                                             consumerID, consumed));
+         }
+         stmt.executeUpdate(
+            "DELETE FROM ChangeFeedConsumers WHERE seenOn < now() - interval '" + CONSUMER_TIMEOUT + "'");
+         stmt.executeUpdate(
+            "DELETE FROM ChangeFeed WHERE seq < (SELECT MIN(seq) FROM ChangeFeedConsumers)");
+      } finally {
+         stmt.close();
+      }
+   }
+
+   private void resync() {
+      resyncCount++;
+      for (Listener listener : listeners) {
+         listener.resync();
+      }
+   }
+
+   /**
+    * Reconnects with a growing delay. Anything written while disconnected is
+    * unknown, so listeners start over from the new end of the feed.
+    */
+   private void reconnect() {
+      long delay = 500;
+      closeConnection();
+      while (running) {
+         try {
+            Thread.sleep(delay);
+            connect();
+            resync();
+            return;
+         }catch (InterruptedException e){
+            return;
+         }catch (SQLException e){
+            closeConnection();
+            delay = Math.min(delay * 2, 30000);
+         }
+      }
+   }
+
+   private void closeConnection() {
+      try {
+         if (connection != null) {
+            connection.close();
+         }
+      }catch (SQLException e){
+         // ignored.
+      }
+   }
+
+   /**
+    * @return events applied, gaps, resyncs and the delay between a change
+    *         being written and this instance reading it
+    */
+   public String getStats() {
+      long events = eventCount;
+      return String.format("Events applied: %d in %d batches, gaps: %d, open holes: %d, resyncs: %d\n" +
+                           "Propagation lag: avg %.1f ms, max %.1f ms",
+                           events, batchCount, gapCount, openHoles, resyncCount,
+                           events == 0 ? 0.0 : lagSum * 1000 / events, lagMax * 1000);
+   }
+
+}//end ChangeFeed
@@ -0,0 +1,483 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * This class writes a synthetic data set in the formats of data/*.csv, at
+ * any multiple of the checked in sizes (scale 1 gives 100 users, 20 hotels,
+ * 200 rooms, 500 bookings, ...).
+ *
+ * Everything is derived from the seed and the row or hotel number, so the
+ * output does not depend on the number of threads. Hotels, their managers
+ * and customers follow a Zipf like popularity, booking dates favour the
+ * summer and December, and a room is never booked twice for the same night.
+ * Files are produced in blocks by a pool of threads and written in order,
+ * so memory stays bounded whatever the scale.
+ *
+ */
+public class DataGenerator {
+
+   private static final DateTimeFormatter USER_DATE = DateTimeFormatter.ofPattern("M/d/yyyy");
+   private static final DateTimeFormatter UPDATED_ON = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+   private static final String[] FIRST = { "Amy", "Bob", "Marshall", "Paige", "Karianne", "Luz", "Aubrey",
+                                           "Rozella", "Clotilde", "Maci", "Abdullah", "Alec", "Bria", "Dane" };
+   private static final String[] LAST = { "Johns", "Powlowski", "Kerluke", "Hills", "Bauch", "Runte", "Lind",
+                                          "Mayer", "Ward", "Kunde", "Ortiz", "Stark" };
+   // relative booking demand per month, January first
+   private static final double[] SEASON = { 0.7, 0.6, 0.8, 0.9, 1.0, 1.6, 2.0, 2.0, 1.1, 0.9, 0.8, 1.6 };
+
+   // one user in MANAGER_EVERY is a manager
+   private static final int MANAGER_EVERY = 16;
+   private static final LocalDate FIRST_BOOKING = LocalDate.of(2000, 1, 1);
+   private static final LocalDate LAST_BOOKING = LocalDate.of(2022, 12, 31);
+   // never fill a hotel beyond this share of its room-nights
+   private static final double MAX_OCCUPANCY = 0.8;
+   private static final int BLOCK_ROWS = 50000;
+
+   private final long seed;
+   private final int threads;
+   private final double skew;
+   private final int roomsPerHotel;
+   private final long users;
+   private final long hotels;
+   private final long companies;
+   private final long bookings;
+   private final long repairs;
+   private final long updates;
+   private final long managers;
+   private final int bookingDays;
+   private final double[] seasonCdf = new double[12];
+
+   // bookings of hotel h are ceil(k * popularity(h)) capped by capacity; k is chosen to hit the total
+   private double bookingScale;
+
+   public DataGenerator(double scale, long seed, int threads, double skew, int roomsPerHotel) {
+      this.seed = seed;
+      this.threads = threads;
+      this.skew = skew;
+      this.roomsPerHotel = roomsPerHotel;
+      this.users = Math.max(MANAGER_EVERY, Math.round(100 * scale));
+      this.hotels = Math.max(1, Math.round(20 * scale));
+      this.companies = Math.max(1, Math.round(5 * scale));
+      this.bookings = Math.round(500 * scale);
+      this.repairs = Math.round(10 * scale);
+      this.updates = Math.round(50 * scale);
+      this.managers = users / MANAGER_EVERY;
+      this.bookingDays = (int) (LAST_BOOKING.toEpochDay() - FIRST_BOOKING.toEpochDay()) + 1;
+      double sum = 0;
+      for (int m = 0; m < 12; m++) {
+         sum += SEASON[m];
+      }
+      double acc = 0;
+      for (int m = 0; m < 12; m++) {
+         acc += SEASON[m] / sum;
+         seasonCdf[m] = acc;
+      }
+   }
+
+   /**
+    * The main execution method
+    *
+    * @param args <output dir> [scale] [seed] [threads]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1 || args.length > 4) {
+         System.err.println("Usage: java [-classpath <classpath>] " + DataGenerator.class.getName()
+                            + " <output dir> [scale=1] [seed=166] [threads=#cpus]");
+         return;
+      }
+      File dir = new File(args[0]);
+      double scale = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+      long seed = args.length > 2 ? Long.parseLong(args[2]) : 166;
+      int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Cannot create " + dir);
+      }
+      new DataGenerator(scale, seed, threads, 0.8, 10).generate(dir);
+   }
+
+   /**
+    * Writes all eight files into a directory.
+    */
+   public void generate(File dir) throws IOException, InterruptedException, ExecutionException {
+      long capacity = hotels * (long) (roomsPerHotel * bookingDays * MAX_OCCUPANCY);
+      if (bookings > capacity) {
+         throw new IllegalArgumentException("Not enough room-nights for " + bookings + " bookings, at most " + capacity);
+      }
+      bookingScale = solveBookingScale();
+
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+         long start = System.currentTimeMillis();
+         writeTable(pool, new File(dir, "users.csv"), "userID,name,password,userType", users, BLOCK_ROWS, new Block() {
+            public String rows(long from, long to) { return userRows(from, to); }
+         });
+         writeTable(pool, new File(dir, "hotels.csv"), "hotelID,hotelName,latitude,longitude,dateEstablished,managerUserID", hotels, BLOCK_ROWS, new Block() {
+            public String rows(long from, long to) { return hotelRows(from, to); }
+         });
+         writeTable(pool, new File(dir, "rooms.csv"), "hotelID,roomNumber,price,imageURL", hotels, Math.max(1, BLOCK_ROWS / roomsPerHotel), new Block() {
+            public String rows(long from, long to) { return roomRows(from, to); }
+         });
+         writeTable(pool, new File(dir, "company.csv"), "companyID,name,address", companies, BLOCK_ROWS, new Block() {
+            public String rows(long from, long to) { return companyRows(from, to); }
+         });
+         final long[] blockFirstID = bookingBlockOffsets(BOOKING_BLOCK_HOTELS);
+         writeTable(pool, new File(dir, "bookings.csv"), "bookingID,customerID,hotelID,roomNumber,bookingDate", hotels, BOOKING_BLOCK_HOTELS, new Block() {
+            public String rows(long from, long to) { return bookingRows(from, to, blockFirstID[(int) ((from - 1) / BOOKING_BLOCK_HOTELS)]); }
+         });
+         writeTable(pool, new File(dir, "roomRepairs.csv"), "repairID,companyID,hotelID,roomNumber,repairDate", repairs, BLOCK_ROWS, new Block() {
+            public String rows(long from, long to) { return repairRows(from, to); }
+         });
+         writeTable(pool, new File(dir, "roomRepairRequests.csv"), "requestNumber,managerID,repairID", repairs, BLOCK_ROWS, new Block() {
+            public String rows(long from, long to) { return repairRequestRows(from, to); }
+         });
+         writeTable(pool, new File(dir, "roomUpdatesLog.csv"), "updateNumber,managerID,hotelID,roomNumber,updatedOn", updates, BLOCK_ROWS, new Block() {
+            public String rows(long from, long to) { return updateRows(from, to); }
+         });
+         System.out.printf("Generated %d users, %d hotels, %d rooms, %d bookings in %.1f s%n",
+                           users, hotels, hotels * roomsPerHotel, bookings, (System.currentTimeMillis() - start) / 1000.0);
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+
+   /**
+    * Produces the rows for units [from, to] (1 based), each preceded by CRLF.
+    */
+   interface Block {
+      String rows(long from, long to);
+   }
+
+   /**
+    * Generates a file in blocks on the pool and writes them in order. Like
+    * the checked in files, lines end in CRLF and the last line has none.
+    */
+   private void writeTable(ExecutorService pool, File file, String header, long units, long unitsPerBlock,
+                           final Block block) throws IOException, InterruptedException, ExecutionException {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20);
+      try {
+         out.write(header.getBytes(StandardCharsets.UTF_8));
+         Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+         for (long from = 1; from <= units; from += unitsPerBlock) {
+            final long first = from;
+            final long last = Math.min(units, from + unitsPerBlock - 1);
+            pending.add(pool.submit(new Callable<byte[]>() {
+               public byte[] call() {
+                  return block.rows(first, last).getBytes(StandardCharsets.UTF_8);
+               }
+            }));
+            if (pending.size() >= 2 * threads) {
+               out.write(pending.poll().get());
+            }
+         }
+         while (!pending.isEmpty()) {
+            out.write(pending.poll().get());
+         }
+      } finally {
+         out.close();
+      }
+   }
+
+   // ---------------------------------------------------------------------
+   // deterministic randomness
+
+   private SplittableRandom random(long table, long row) {
+      long h = seed * 0x9E3779B97F4A7C15L + table * 0xC2B2AE3D27D4EB4FL + row * 0x165667B19E3779F9L;
+      return new SplittableRandom(h);
+   }
+
+   /**
+    * Popularity rank (1 = most popular) of an id among n, as a bijection
+    * that scatters popular ids instead of favouring low ones.
+    */
+   private static long rankOf(long id, long n) {
+      return Math.floorMod((id - 1) * multiplier(n), n) + 1;
+   }
+
+   private static long idOfRank(long rank, long n) {
+      return Math.floorMod((rank - 1) * inverse(multiplier(n), n), n) + 1;
+   }
+
+   private static long multiplier(long n) {
+      long a = (long) (n * 0.6180339887) | 1;
+      while (gcd(a, n) != 1) {
+         a += 2;
+      }
+      return a % Math.max(1, n);
+   }
+
+   private static long gcd(long a, long b) {
+      return b == 0 ? a : gcd(b, a % b);
+   }
+
+   private static long inverse(long a, long n) {
+      if (n == 1) {
+         return 0;
+      }
+      long t = 0, newT = 1, r = n, newR = a;
+      while (newR != 0) {
+         long q = r / newR;
+         long tmp = t - q * newT; t = newT; newT = tmp;
+         tmp = r - q * newR; r = newR; newR = tmp;
+      }
+      return Math.floorMod(t, n);
+   }
+
+   /**
+    * Draws a rank in [1, n] with probability roughly proportional to
+    * rank^-skew, by inverting the continuous power law.
+    */
+   private long zipfRank(SplittableRandom rnd, long n) {
+      double u = rnd.nextDouble();
+      double rank;
+      if (Math.abs(skew - 1.0) < 1e-9) {
+         rank = Math.exp(u * Math.log(n + 1.0));
+      } else {
+         double e = 1.0 - skew;
+         rank = Math.pow(u * (Math.pow(n + 1.0, e) - 1.0) + 1.0, 1.0 / e);
+      }
+      return Math.min(n, Math.max(1, (long) rank));
+   }
+
+   private static String letters(SplittableRandom rnd, int length) {
+      char[] c = new char[length];
+      for (int i = 0; i < length; i++) {
+         c[i] = (char) ('a' + rnd.nextInt(26));
+      }
+      return new String(c);
+   }
+
+   private LocalDate seasonalDate(SplittableRandom rnd) {
+      int years = LAST_BOOKING.getYear() - FIRST_BOOKING.getYear() + 1;
+      int year = FIRST_BOOKING.getYear() + rnd.nextInt(years);
+      double u = rnd.nextDouble();
+      int month = 0;
+      while (month < 11 && u > seasonCdf[month]) {
+         month++;
+      }
+      LocalDate first = LocalDate.of(year, month + 1, 1);
+      return first.plusDays(rnd.nextInt(first.lengthOfMonth()));
+   }
+
+   private static String decimal(double value) {
+      String s = String.format("%.5f", value);
+      int end = s.length();
+      while (s.charAt(end - 1) == '0') {
+         end--;
+      }
+      return s.substring(0, s.charAt(end - 1) == '.' ? end - 1 : end);
+   }
+
+   // ---------------------------------------------------------------------
+   // tables
+
+   private static final long USERS = 1, HOTELS = 2, ROOMS = 3, COMPANIES = 4, BOOKINGS = 5,
+                             REPAIRS = 6, UPDATES = 7, MANAGERS = 8;
+
+   private static boolean isManager(long userID) {
+      return userID % MANAGER_EVERY == 0;
+   }
+
+   /**
+    * The manager of a hotel; a few managers run many hotels.
+    */
+   private long managerOf(long hotelID) {
+      SplittableRandom rnd = random(MANAGERS, hotelID);
+      return MANAGER_EVERY * idOfRank(zipfRank(rnd, managers), managers);
+   }
+
+   private String userRows(long from, long to) {
+      StringBuilder sb = new StringBuilder((int) (to - from + 1) * 40);
+      for (long id = from; id <= to; id++) {
+         if (id == 1) {
+            sb.append("\r\n1,Admin,xyz,admin");
+            continue;
+         }
+         SplittableRandom rnd = random(USERS, id);
+         sb.append("\r\n").append(id).append(',')
+           .append(FIRST[rnd.nextInt(FIRST.length)]).append('.').append(LAST[rnd.nextInt(LAST.length)]).append(id)
+           .append(",xyz,").append(isManager(id) ? "manager" : "customer");
+      }
+      return sb.toString();
+   }
+
+   private String hotelRows(long from, long to) {
+      StringBuilder sb = new StringBuilder((int) (to - from + 1) * 48);
+      for (long id = from; id <= to; id++) {
+         SplittableRandom rnd = random(HOTELS, id);
+         LocalDate established = LocalDate.of(1930, 1, 1).plusDays(rnd.nextInt(50 * 365));
+         sb.append("\r\n").append(id).append(',').append(letters(rnd, 4)).append(',')
+           .append(decimal(rnd.nextDouble() * 100)).append(',').append(decimal(rnd.nextDouble() * 100)).append(',')
+           .append(established.format(USER_DATE)).append(',').append(managerOf(id));
+      }
+      return sb.toString();
+   }
+
+   private String roomRows(long from, long to) {
+      StringBuilder sb = new StringBuilder((int) (to - from + 1) * roomsPerHotel * 24);
+      for (long hotelID = from; hotelID <= to; hotelID++) {
+         SplittableRandom rnd = random(ROOMS, hotelID);
+         for (int room = 1; room <= roomsPerHotel; room++) {
+            sb.append("\r\n").append(hotelID).append(',').append(room).append(',')
+              .append(10 + rnd.nextInt(1990)).append(',').append(letters(rnd, 4));
+         }
+      }
+      return sb.toString();
+   }
+
+   private String companyRows(long from, long to) {
+      StringBuilder sb = new StringBuilder((int) (to - from + 1) * 24);
+      for (long id = from; id <= to; id++) {
+         SplittableRandom rnd = random(COMPANIES, id);
+         StringBuilder name = new StringBuilder();
+         for (long n = id - 1; ; n = n / 26 - 1) {
+            name.insert(0, (char) ('A' + n % 26));
+            if (n < 26) {
+               break;
+            }
+         }
+         sb.append("\r\n").append(id).append(',').append(name).append("-com,").append(letters(rnd, 4));
+      }
+      return sb.toString();
+   }
+
+   // ---------------------------------------------------------------------
+   // bookings
+
+   private static final int BOOKING_BLOCK_HOTELS = 256;
+
+   private long hotelCapacity() {
+      return (long) (roomsPerHotel * bookingDays * MAX_OCCUPANCY);
+   }
+
+   private long bookingsOf(long hotelID, double k) {
+      double popularity = Math.pow(rankOf(hotelID, hotels), -skew);
+      return Math.min(hotelCapacity(), (long) Math.ceil(k * popularity));
+   }
+
+   private long totalBookings(double k) {
+      long total = 0;
+      for (long h = 1; h <= hotels; h++) {
+         total += bookingsOf(h, k);
+      }
+      return total;
+   }
+
+   /**
+    * Finds the scale k for which the capped per hotel counts add up to just
+    * over the requested total; bookingRows trims the surplus off the end.
+    */
+   private double solveBookingScale() {
+      if (bookings == 0) {
+         return 0;
+      }
+      double lo = 0, hi = 1;
+      while (totalBookings(hi) < bookings) {
+         hi *= 2;
+      }
+      for (int i = 0; i < 40; i++) {
+         double mid = (lo + hi) / 2;
+         if (totalBookings(mid) < bookings) {
+            lo = mid;
+         } else {
+            hi = mid;
+         }
+      }
+      return hi;
+   }
+
+   /**
+    * @return the first bookingID of every block of hotels
+    */
+   private long[] bookingBlockOffsets(int hotelsPerBlock) {
+      long[] offsets = new long[(int) ((hotels + hotelsPerBlock - 1) / hotelsPerBlock)];
+      long next = 1;
+      for (int b = 0; b < offsets.length; b++) {
+         offsets[b] = next;
+         long last = Math.min(hotels, (long) (b + 1) * hotelsPerBlock);
+         for (long h = (long) b * hotelsPerBlock + 1; h <= last; h++) {
+            next += bookingsOf(h, bookingScale);
+         }
+      }
+      return offsets;
+   }
+
+   private String bookingRows(long fromHotel, long toHotel, long firstID) {
+      StringBuilder sb = new StringBuilder(1 << 16);
+      long id = firstID;
+      BitSet taken = new BitSet(roomsPerHotel * bookingDays);
+      for (long hotelID = fromHotel; hotelID <= toHotel && id <= bookings; hotelID++) {
+         SplittableRandom rnd = random(BOOKINGS, hotelID);
+         long count = bookingsOf(hotelID, bookingScale);
+         taken.clear();
+         for (long n = 0; n < count && id <= bookings; n++, id++) {
+            int room;
+            LocalDate date;
+            int slot;
+            do {
+               room = 1 + rnd.nextInt(roomsPerHotel);
+               date = seasonalDate(rnd);
+               slot = (room - 1) * bookingDays + (int) (date.toEpochDay() - FIRST_BOOKING.toEpochDay());
+            } while (taken.get(slot));
+            taken.set(slot);
+            long customer = 1 + idOfRank(zipfRank(rnd, users - 1), users - 1);
+            sb.append("\r\n").append(id).append(',').append(customer).append(',').append(hotelID).append(',')
+              .append(room).append(',').append(date.format(USER_DATE));
+         }
+      }
+      return sb.toString();
+   }
+
+   // ---------------------------------------------------------------------
+   // repairs and updates
+
+   private String repairRows(long from, long to) {
+      StringBuilder sb = new StringBuilder((int) (to - from + 1) * 32);
+      for (long id = from; id <= to; id++) {
+         SplittableRandom rnd = random(REPAIRS, id);
+         long hotelID = 1 + rnd.nextLong(hotels);
+         LocalDate date = LocalDate.of(2018, 1, 1).plusDays(rnd.nextInt(5 * 365));
+         sb.append("\r\n").append(id).append(',').append(1 + rnd.nextLong(companies)).append(',')
+           .append(hotelID).append(',').append(1 + rnd.nextInt(roomsPerHotel)).append(',').append(date.format(USER_DATE));
+      }
+      return sb.toString();
+   }
+
+   private String repairRequestRows(long from, long to) {
+      StringBuilder sb = new StringBuilder((int) (to - from + 1) * 16);
+      for (long id = from; id <= to; id++) {
+         // same draw as repairRows, so the request comes from the repaired hotel's manager
+         long hotelID = 1 + random(REPAIRS, id).nextLong(hotels);
+         sb.append("\r\n").append(id).append(',').append(managerOf(hotelID)).append(',').append(id);
+      }
+      return sb.toString();
+   }
+
+   private String updateRows(long from, long to) {
+      StringBuilder sb = new StringBuilder((int) (to - from + 1) * 40);
+      LocalDateTime base = LocalDateTime.of(2016, 9, 10, 13, 0);
+      for (long id = from; id <= to; id++) {
+         SplittableRandom rnd = random(UPDATES, id);
+         long hotelID = 1 + rnd.nextLong(hotels);
+         sb.append("\r\n").append(id).append(',').append(managerOf(hotelID)).append(',').append(hotelID).append(',')
+           .append(1 + rnd.nextInt(roomsPerHotel)).append(',').append(base.plusMinutes(id).format(UPDATED_ON));
+      }
+      return sb.toString();
+   }
+
+}//end DataGenerator
@@ -0,0 +1,583 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * This class streams RoomBookings, RoomRepairs or RoomUpdatesLog to a file
+ * as CSV, JSON Lines or a compact binary columnar format.
+ *
+ * Rows are read through a server side cursor on a connection of their own,
+ * encoded in chunks of CHUNK_ROWS rows, optionally gzipped by a pool of
+ * threads (each chunk is a separate gzip member, which gzip readers
+ * concatenate) and written in order by a writer thread through a file
+ * channel. An export that fails part way deletes its file, so a file that
+ * exists is always complete.
+ *
+ * Columnar layout: "HDBC", version, column count, then per column its name
+ * and type (I int, L bigint, D date as epoch day, T timestamp as epoch
+ * millis, S text).
+ * Then blocks of: row count, followed by each column's values for the block
+ * (numbers as a null bitmap then 4 byte ints, 8 byte for bigints and
+ * timestamps; strings
+ * as length prefixed UTF-8, -1 for null). A row count of 0 ends the file.
+ *
+ */
+public class Exporter {
+
+   private static final int FETCH_ROWS = 10000;
+   private static final int CHUNK_ROWS = 65536;
+   private static final long PROGRESS_MILLIS = 1000;
+
+   public enum Format {
+      CSV(".csv"), JSONL(".jsonl"), COLUMNAR(".hdbc");
+
+      final String extension;
+
+      Format(String extension) {
+         this.extension = extension;
+      }
+   }
+
+   /**
+    * Which rows to export and where to.
+    */
+   public static class Options {
+      public String table = "bookings";   // bookings, repairs or updates
+      public Format format = Format.CSV;
+      public boolean gzip = false;
+      public Integer hotelID = null;
+      public Integer managerID = null;    // only hotels managed by this user
+      public LocalDate from = null;
+      public LocalDate to = null;         // inclusive
+      public String path = null;          // defaults to <table><extension>[.gz]
+   }
+
+   private final Hotel esql;
+   private final int compressThreads;
+
+   public Exporter(Hotel esql) {
+      this.esql = esql;
+      this.compressThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+   }
+
+   /**
+    * Builds the query for a table and the filters of the options.
+    */
+   static String buildQuery(Options options) {
+      String columns;
+      String table;
+      String dateColumn;
+      if (options.table.equals("bookings")) {
+         columns = "bookingID, customerID, hotelID, roomNumber, bookingDate";
+         table = "RoomBookings";
+         dateColumn = "bookingDate";
+      } else if (options.table.equals("repairs")) {
+         columns = "repairID, companyID, hotelID, roomNumber, repairDate";
+         table = "RoomRepairs";
+         dateColumn = "repairDate";
+      } else if (options.table.equals("updates")) {
+         columns = "updateNumber, managerID, hotelID, roomNumber, updatedOn";
+         table = "RoomUpdatesLog";
+         dateColumn = "updatedOn";
+      } else {
+         throw new IllegalArgumentException("Unknown table " + options.table + ", expected bookings, repairs or updates.");
+      }
+
+      List<String> where = new ArrayList<String>();
+      if (options.hotelID != null) {
+         where.add(String.format("hotelID = %d", options.hotelID));
+      }
+      if (options.managerID != null) {
+         where.add(String.format("hotelID IN (SELECT H.hotelID FROM Hotel H WHERE H.managerUserID = %d)", options.managerID));
+      }
+      if (options.from != null) {
+         where.add(String.format("%s >= DATE '%s'", dateColumn, options.from));
+      }
+      if (options.to != null) {
+         where.add(String.format("%s < DATE '%s'", dateColumn, options.to.plusDays(1)));
+      }
+      StringBuilder query = new StringBuilder("SELECT ").append(columns).append(" FROM ").append(table);
+      for (int i = 0; i < where.size(); i++) {
+         query.append(i == 0 ? " WHERE " : " AND ").append(where.get(i));
+      }
+      return query.toString();
+   }
+
+   /**
+    * Runs an export.
+    *
+    * @param options what to export
+    * @param progress where to report progress, or null
+    * @return the number of rows written
+    * @throws java.sql.SQLException when the rows cannot be read
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public long export(Options options, PrintStream progress) throws SQLException, IOException {
+      String path = options.path != null ? options.path
+                  : options.table + options.format.extension + (options.gzip ? ".gz" : "");
+      ExecutorService compressors = options.gzip ? Executors.newFixedThreadPool(compressThreads) : null;
+      BlockingQueue<Future<byte[]>> pending = new ArrayBlockingQueue<Future<byte[]>>(2 * compressThreads + 2);
+      ChunkWriter writer = new ChunkWriter(path, pending);
+      writer.start();
+
+      Connection connection = null;
+      long rows = 0;
+      boolean complete = false;
+      try {
+         connection = esql.openConnection();
+         connection.setAutoCommit(false);
+         Statement stmt = connection.createStatement();
+         try {
+            stmt.executeUpdate("DECLARE export_cursor NO SCROLL CURSOR FOR " + buildQuery(options));
+            Encoder encoder = null;
+            long start = System.currentTimeMillis();
+            long lastReport = start;
+            boolean more = true;
+            while (more) {
+               // under the export's budget, so the governor can cancel a slow FETCH
+               ResultSet rs = esql.executeQuery(stmt, "FETCH FORWARD " + FETCH_ROWS + " FROM export_cursor");
+               if (encoder == null) {
+                  encoder = newEncoder(options.format, rs.getMetaData());
+                  submit(encoder.header(), compressors, pending, writer);
+               }
+               int fetched = 0;
+               while (rs.next()) {
+                  encoder.row(rs);
+                  fetched++;
+                  if (encoder.rows() == CHUNK_ROWS) {
+                     submit(encoder.flush(), compressors, pending, writer);
+                  }
+               }
+               rs.close();
+               rows += fetched;
+               more = fetched == FETCH_ROWS;
+
+               long now = System.currentTimeMillis();
+               if (progress != null && now - lastReport >= PROGRESS_MILLIS) {
+                  progress.printf("\t%d rows exported (%.0f rows/s)%n", rows, rows * 1000.0 / Math.max(1, now - start));
+                  lastReport = now;
+               }
+            }
+            submit(encoder.flush(), compressors, pending, writer);
+            submit(encoder.trailer(), compressors, pending, writer);
+            stmt.executeUpdate("CLOSE export_cursor");
+            complete = true;
+         } finally {
+            stmt.close();
+            if (complete) {
+               connection.commit();
+            } else {
+               connection.rollback();
+            }
+         }
+      } finally {
+         if (connection != null) {
+            connection.close();
+         }
+         if (complete) {
+            writer.finish();
+         } else {
+            writer.abort();
+         }
+         if (compressors != null) {
+            compressors.shutdownNow();
+         }
+      }
+      if (progress != null) {
+         progress.printf("\t%d rows exported to %s%n", rows, path);
+      }
+      return rows;
+   }
+
+   private static void submit(final byte[] chunk, ExecutorService compressors,
+                              BlockingQueue<Future<byte[]>> pending, ChunkWriter writer) throws IOException {
+      if (chunk.length == 0) {
+         return;
+      }
+      Future<byte[]> future;
+      if (compressors == null) {
+         future = CompletableFuture.completedFuture(chunk);
+      } else {
+         future = compressors.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+               ByteArrayOutputStream out = new ByteArrayOutputStream(chunk.length / 4 + 64);
+               GZIPOutputStream gz = new GZIPOutputStream(out, 64 * 1024);
+               gz.write(chunk);
+               gz.close();
+               return out.toByteArray();
+            }
+         });
+      }
+      writer.checkFailed();
+      try {
+         pending.put(future);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new IOException("Export interrupted");
+      }
+   }
+
+   /**
+    * Writes the chunks in the order they were submitted, and deletes the
+    * file when the export is aborted or a write fails.
+    */
+   private static class ChunkWriter extends Thread {
+      private static final Future<byte[]> END = CompletableFuture.completedFuture(null);
+      private static final Future<byte[]> ABORT = CompletableFuture.completedFuture(null);
+
+      private final String path;
+      private final BlockingQueue<Future<byte[]>> pending;
+      private volatile Exception failure = null;
+
+      ChunkWriter(String path, BlockingQueue<Future<byte[]>> pending) {
+         super("export-writer");
+         this.path = path;
+         this.pending = pending;
+      }
+
+      public void run() {
+         boolean complete = false;
+         try {
+            FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                                                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+               while (true) {
+                  Future<byte[]> next = pending.take();
+                  if (next == END) {
+                     complete = true;
+                     break;
+                  }
+                  if (next == ABORT) {
+                     break;
+                  }
+                  ByteBuffer buffer = ByteBuffer.wrap(next.get());
+                  while (buffer.hasRemaining()) {
+                     channel.write(buffer);
+                  }
+               }
+            } finally {
+               channel.close();
+            }
+         }catch (Exception e){
+            failure = e;
+            pending.clear();
+         }
+         if (!complete) {
+            try {
+               Files.deleteIfExists(Paths.get(path));
+            }catch (IOException e){
+               System.err.println("Could not delete the partial export " + path + ": " + e.getMessage());
+            }
+         }
+      }
+
+      void checkFailed() throws IOException {
+         if (failure != null) {
+            throw new IOException("Export failed: " + failure.getMessage(), failure);
+         }
+      }
+
+      void finish() throws IOException {
+         try {
+            if (failure == null) {
+               pending.put(END);
+            }
+            join();
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }
+         checkFailed();
+      }
+
+      /**
+       * Stops writing and deletes the file, after the export failed.
+       */
+      void abort() {
+         try {
+            pending.clear();
+            if (failure == null) {
+               pending.put(ABORT);
+            }
+            join();
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   private static Encoder newEncoder(Format format, ResultSetMetaData meta) throws SQLException {
+      switch (format) {
+         case JSONL: return new JsonLinesEncoder(meta);
+         case COLUMNAR: return new ColumnarEncoder(meta);
+         default: return new CsvEncoder(meta);
+      }
+   }
+
+   /**
+    * Turns rows into byte chunks.
+    */
+   private abstract static class Encoder {
+      final int numCol;
+      final String[] names;
+      final int[] types;
+      int rows = 0;
+
+      Encoder(ResultSetMetaData meta) throws SQLException {
+         numCol = meta.getColumnCount();
+         names = new String[numCol];
+         types = new int[numCol];
+         for (int i = 0; i < numCol; i++) {
+            names[i] = meta.getColumnName(i + 1);
+            types[i] = meta.getColumnType(i + 1);
+         }
+      }
+
+      int rows() {
+         return rows;
+      }
+
+      byte[] header() throws IOException {
+         return new byte[0];
+      }
+
+      byte[] trailer() throws IOException {
+         return new byte[0];
+      }
+
+      abstract void row(ResultSet rs) throws SQLException;
+
+      abstract byte[] flush() throws IOException;
+   }
+
+   private static class CsvEncoder extends Encoder {
+      private final StringBuilder sb = new StringBuilder(CHUNK_ROWS * 48);
+
+      CsvEncoder(ResultSetMetaData meta) throws SQLException {
+         super(meta);
+      }
+
+      byte[] header() {
+         StringBuilder line = new StringBuilder();
+         for (int i = 0; i < numCol; i++) {
+            line.append(i == 0 ? "" : ",").append(names[i]);
+         }
+         return line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+      }
+
+      void row(ResultSet rs) throws SQLException {
+         for (int i = 0; i < numCol; i++) {
+            if (i > 0) {
+               sb.append(',');
+            }
+            String value = rs.getString(i + 1);
+            if (value == null) {
+               continue;
+            }
+            if (types[i] == Types.CHAR) {
+               value = value.trim();
+            }
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+               sb.append('"').append(value.replace("\"", "\"\"")).append('"');
+            } else {
+               sb.append(value);
+            }
+         }
+         sb.append('\n');
+         rows++;
+      }
+
+      byte[] flush() {
+         byte[] chunk = sb.toString().getBytes(StandardCharsets.UTF_8);
+         sb.setLength(0);
+         rows = 0;
+         return chunk;
+      }
+   }
+
+   private static class JsonLinesEncoder extends Encoder {
+      private final StringBuilder sb = new StringBuilder(CHUNK_ROWS * 96);
+
+      JsonLinesEncoder(ResultSetMetaData meta) throws SQLException {
+         super(meta);
+      }
+
+      void row(ResultSet rs) throws SQLException {
+         sb.append('{');
+         for (int i = 0; i < numCol; i++) {
+            sb.append(i == 0 ? "\"" : ",\"").append(names[i]).append("\":");
+            String value = rs.getString(i + 1);
+            if (value == null) {
+               sb.append("null");
+            } else if (types[i] == Types.INTEGER || types[i] == Types.BIGINT) {
+               sb.append(value);
+            } else {
+               sb.append('"');
+               String text = types[i] == Types.CHAR ? value.trim() : value;
+               for (int c = 0; c < text.length(); c++) {
+                  char ch = text.charAt(c);
+                  if (ch == '"' || ch == '\\') {
+                     sb.append('\\').append(ch);
+                  } else if (ch < 0x20) {
+                     sb.append(String.format("\\u%04x", (int) ch));
+                  } else {
+                     sb.append(ch);
+                  }
+               }
+               sb.append('"');
+            }
+         }
+         sb.append("}\n");
+         rows++;
+      }
+
+      byte[] flush() {
+         byte[] chunk = sb.toString().getBytes(StandardCharsets.UTF_8);
+         sb.setLength(0);
+         rows = 0;
+         return chunk;
+      }
+   }
+
+   private static class ColumnarEncoder extends Encoder {
+      private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss[.SSSSSS][.SSSSS][.SSSS][.SSS][.SS][.S]");
+
+      private final char[] kinds;
+      private final long[][] numbers;
+      private final boolean[][] nulls;
+      private final String[][] strings;
+
+      ColumnarEncoder(ResultSetMetaData meta) throws SQLException {
+         super(meta);
+         kinds = new char[numCol];
+         numbers = new long[numCol][];
+         nulls = new boolean[numCol][];
+         strings = new String[numCol][];
+         for (int i = 0; i < numCol; i++) {
+            switch (types[i]) {
+               case Types.INTEGER: case Types.SMALLINT: kinds[i] = 'I'; break;
+               case Types.BIGINT: kinds[i] = 'L'; break;
+               case Types.DATE: kinds[i] = 'D'; break;
+               case Types.TIMESTAMP: kinds[i] = 'T'; break;
+               default: kinds[i] = 'S'; break;
+            }
+            if (kinds[i] == 'S') {
+               strings[i] = new String[CHUNK_ROWS];
+            } else {
+               numbers[i] = new long[CHUNK_ROWS];
+               nulls[i] = new boolean[CHUNK_ROWS];
+            }
+         }
+      }
+
+      byte[] header() throws IOException {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeBytes("HDBC");
+         out.writeByte(2);
+         out.writeShort(numCol);
+         for (int i = 0; i < numCol; i++) {
+            out.writeUTF(names[i]);
+            out.writeByte(kinds[i]);
+         }
+         out.flush();
+         return bytes.toByteArray();
+      }
+
+      byte[] trailer() throws IOException {
+         return new byte[] { 0, 0, 0, 0 };
+      }
+
+      void row(ResultSet rs) throws SQLException {
+         for (int i = 0; i < numCol; i++) {
+            if (kinds[i] == 'S') {
+               String value = rs.getString(i + 1);
+               strings[i][rows] = value == null ? null : value.trim();
+               continue;
+            }
+            String value = rs.getString(i + 1);
+            nulls[i][rows] = value == null;
+            if (value == null) {
+               continue;
+            }
+            switch (kinds[i]) {
+               case 'I': case 'L': numbers[i][rows] = Long.parseLong(value); break;
+               case 'D': numbers[i][rows] = LocalDate.parse(value).toEpochDay(); break;
+               default: numbers[i][rows] = LocalDateTime.parse(value, TIMESTAMP).toInstant(ZoneOffset.UTC).toEpochMilli(); break;
+            }
+         }
+         rows++;
+      }
+
+      byte[] flush() throws IOException {
+         if (rows == 0) {
+            return new byte[0];
+         }
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(rows * numCol * 8);
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeInt(rows);
+         for (int i = 0; i < numCol; i++) {
+            if (kinds[i] == 'S') {
+               for (int r = 0; r < rows; r++) {
+                  if (strings[i][r] == null) {
+                     out.writeInt(-1);
+                  } else {
+                     byte[] utf8 = strings[i][r].getBytes(StandardCharsets.UTF_8);
+                     out.writeInt(utf8.length);
+                     out.write(utf8);
+                  }
+               }
+               continue;
+            }
+            // null bitmap, then the values
+            for (int r = 0; r < rows; r += 8) {
+               int bits = 0;
+               for (int b = 0; b < 8 && r + b < rows; b++) {
+                  if (nulls[i][r + b]) {
+                     bits |= 1 << b;
+                  }
+               }
+               out.writeByte(bits);
+            }
+            for (int r = 0; r < rows; r++) {
+               if (kinds[i] == 'L' || kinds[i] == 'T') {
+                  out.writeLong(numbers[i][r]);
+               } else {
+                  out.writeInt((int) numbers[i][r]);
+               }
+            }
+         }
+         out.flush();
+         rows = 0;
+         return bytes.toByteArray();
+      }
+   }
+
+}//end Exporter
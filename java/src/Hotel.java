@@ -21,12 +21,19 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.Comparator;
+import java.util.TreeMap;
 import java.lang.Math;
 import java.util.Scanner;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
@@ -40,6 +47,46 @@ public class Hotel {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // routes read only queries to replicas, null when there are none
+   private ReplicaRouter _router = null;
+
+   // spreads the hotels over several databases, null when there is one
+   private ShardRouter _shards = null;
+   // the shard statements go to, chosen by useHotel or useShard for one operation
+   private int _shard = 0;
+
+   // the user operation running, null between operations
+   private QueryGovernor.Operation _operation = null;
+   // the slot of its class the operation holds
+   private int _slot = -1;
+   // the System.nanoTime() the operation must be done by
+   private long _deadline = 0;
+
+   // enforces the budgets and concurrency limits of the operations
+   private final QueryGovernor _governor = new QueryGovernor(this);
+
+   // login of the primary, for connections opened besides _connection
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+
+   // follows changes made by other instances, null when not running
+   private ChangeFeed _changeFeed = null;
+   private final List<ChangeFeed> _shardFeeds = new ArrayList<ChangeFeed>();
+   private RoomCache _roomCache = null;
+   // the price history of each shard (just 0 without sharding), kept while the change feed runs
+   private final Map<Integer, PriceHistory> _priceHistories = new TreeMap<Integer, PriceHistory>();
+
+   /**
+    * Callback applied to the result set of a routed query.
+    */
+   private interface ResultHandler<T> {
+      T handle(ResultSet rs) throws SQLException;
+   }
+
+   // number of rows printed at once by executeQueryAndPrintResult
+   private static final int PRINT_BATCH = 1000;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -64,6 +111,9 @@ public class Hotel {
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
+         this._url = url;
+         this._user = user;
+         this._passwd = passwd;
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -72,6 +122,298 @@ public class Hotel {
       }//end catch
    }//end Hotel
 
+   /**
+    * Adds a streaming replica that read only queries may be sent to.
+    *
+    * @param hostport the replica as host:port, or just the port on localhost
+    * @param dbname the name of the database
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    */
+   public void addReplica(String hostport, String dbname, String user, String passwd) {
+      if (this._router == null) {
+         this._router = new ReplicaRouter(this._connection);
+      }
+      String host = hostport.contains(":") ? hostport : "localhost:" + hostport;
+      String url = "jdbc:postgresql://" + host + "/" + dbname;
+      System.out.println ("Replica URL: " + url);
+      this._router.addReplica(url, user, passwd);
+   }
+
+   /**
+    * Adds the next shard. The database connected to is shard 0.
+    *
+    * @param shard the shard's database name on the same server, or host:port/dbname
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when the shard cannot be reached
+    */
+   public void addShard(String shard, String user, String passwd) throws SQLException {
+      if (this._shards == null) {
+         this._shards = new ShardRouter(this._url, user, passwd, this._connection);
+      }
+      String url = shard.contains("/") ? "jdbc:postgresql://" + shard
+                                       : this._url.substring(0, this._url.lastIndexOf('/') + 1) + shard;
+      System.out.println ("Shard " + this._shards.getShardCount() + " URL: " + url);
+      this._shards.addShard(url);
+   }
+
+   /**
+    * Loads the shard directory once all shards are added.
+    *
+    * @throws java.sql.SQLException when the directory cannot be read
+    */
+   public void startShards() throws SQLException {
+      if (this._shards != null) {
+         this._shards.start();
+      }
+   }
+
+   public int getShardCount() {
+      return this._shards == null ? 1 : this._shards.getShardCount();
+   }
+
+   /**
+    * Sends the statements of the running operation to the shard of a hotel.
+    * Does nothing without sharding.
+    */
+   public void useHotel(int hotelID) {
+      if (this._shards != null) {
+         this._shard = this._shards.shardOf(hotelID);
+      }
+   }
+
+   /**
+    * Sends the statements of the running operation to a shard.
+    */
+   public void useShard(int shard) {
+      this._shard = shard;
+   }
+
+   // the connection to the shard in use
+   private Connection primary() {
+      return this._shard == 0 ? this._connection : this._shards.connection(this._shard);
+   }
+
+   /**
+    * Starts following the change feed on a connection of its own and keeps
+    * the room cache in step with it. Without the feed (create_change_feed.sql
+    * not loaded) everything is read from the database as before.
+    */
+   public void startChangeFeed() {
+      ChangeFeed feed = new ChangeFeed(this._url, this._user, this._passwd);
+      RoomCache cache = new RoomCache();
+      feed.addListener(cache);
+      try {
+         feed.start();
+         // every shard has its own feed, and they all keep the one cache current
+         for (int shard = 1; shard < getShardCount(); shard++) {
+            ChangeFeed shardFeed = new ChangeFeed(this._shards.url(shard), this._user, this._passwd);
+            shardFeed.addListener(cache);
+            this._shardFeeds.add(shardFeed);
+            shardFeed.start();
+         }
+         if (this._shards != null) {
+            // entries read from a hotel's old shard, possibly empty, are not changed by any later event
+            this._shards.addDirectoryListener(cache::dropHotel);
+         }
+         this._changeFeed = feed;
+         this._roomCache = cache;
+      }catch (SQLException e){
+         feed.stop();
+         for (ChangeFeed shardFeed : this._shardFeeds) {
+            shardFeed.stop();
+         }
+         this._shardFeeds.clear();
+         System.out.println("Change feed not available, room cache disabled: " + e.getMessage());
+      }
+   }
+
+   /**
+    * Opens another connection to the primary (of the shard in use) with the
+    * same login, for work that should not share _connection (e.g. long
+    * running exports).
+    *
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection() throws SQLException {
+      if (this._shard != 0) {
+         return this._shards.open(this._shard);
+      }
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }
+
+   /**
+    * Opens a connection to a database of this client (primary, shard or
+    * replica) with the same login.
+    *
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection(String url) throws SQLException {
+      return DriverManager.getConnection(url, this._user, this._passwd);
+   }
+
+   public RoomCache getRoomCache() {
+      return this._roomCache;
+   }
+
+   public ChangeFeed getChangeFeed() {
+      return this._changeFeed;
+   }
+
+   /**
+    * Returns the room price history of the shard in use, brought up to
+    * date. One per shard is kept between calls while the change feed runs,
+    * following that shard's feed; otherwise it is loaded on every call.
+    *
+    * @throws java.sql.SQLException when failed to read the history
+    */
+   public PriceHistory getPriceHistory() throws SQLException {
+      PriceHistory history = this._priceHistories.get(this._shard);
+      if (history != null) {
+         history.refresh(this);
+         return history;
+      }
+      history = new PriceHistory();
+      if (this._changeFeed != null) {
+         // listening before the first load, so no change falls in between
+         ChangeFeed feed = this._shard == 0 ? this._changeFeed : this._shardFeeds.get(this._shard - 1);
+         feed.addListener(history);
+         this._priceHistories.put(this._shard, history);
+      }
+      history.refresh(this);
+      return history;
+   }
+
+   /**
+    * Makes the price history see a change of a room made through this
+    * connection without waiting for the change feed.
+    */
+   public void priceChanged(int hotelID, int roomNumber) {
+      PriceHistory history = this._priceHistories.get(this._shard);
+      if (history != null) {
+         history.markStale(hotelID, roomNumber);
+      }
+   }
+
+   /**
+    * Marks the start of a user operation. Its statements together run under
+    * the operation's budget, and for an operation that writes every query runs
+    * on the primary until the matching endOperation, so checks made before
+    * an insert or update see the same data the write will.
+    *
+    * The operation holds a slot of its class until then, so call it once
+    * the user's input has been read, not while they are typing.
+    *
+    * @throws java.sql.SQLException when too many operations of its class are running
+    */
+   public void beginOperation(QueryGovernor.Operation operation) throws SQLException {
+      this._slot = this._governor.admit(operation, this._connection);
+      this._operation = operation;
+      this._deadline = this._governor.deadline(operation);
+   }
+
+   public void endOperation() {
+      if (this._operation != null) {
+         this._governor.release(this._operation, this._slot, this._connection);
+         this._operation = null;
+         this._slot = -1;
+      }
+      this._shard = 0;
+   }
+
+   /**
+    * Runs a query on a replica when this is a read operation and one is
+    * usable, otherwise on the primary. A query whose replica connection
+    * fails is retried once on the primary; any other error is the query's.
+    */
+   private <T> T runQuery(String query, ResultHandler<T> handler) throws SQLException {
+      ReplicaRouter.Replica replica = null;
+      if (this._router != null && this._shard == 0 && (this._operation == null || !this._operation.write)) {
+         replica = this._router.acquire();
+      }
+      if (replica != null) {
+         try {
+            return runStatement(replica.connection, query, handler);
+         }catch (SQLException e){
+            // an over budget or bad query would fail the same way on the primary
+            if (!ReplicaRouter.isConnectionFailure(e)) {
+               throw e;
+            }
+            this._router.markFailed(replica);
+         }finally{
+            this._router.release(replica);
+         }
+      }
+      return runStatement(primary(), query, handler);
+   }
+
+   private <T> T runStatement(Connection connection, String query, ResultHandler<T> handler) throws SQLException {
+      // creates a statement object
+      Statement stmt = connection.createStatement ();
+      QueryGovernor.Ticket ticket = govern(stmt, Collections.singletonList(query));
+      try {
+         // issues the query instruction
+         return handler.handle(stmt.executeQuery (query));
+      }catch (SQLException e){
+         throw this._governor.failed(ticket, e);
+      }finally{
+         this._governor.finish(ticket);
+         stmt.close ();
+      }
+   }
+
+   // arms the deadline for stmt, which is closed when the operation has no time left
+   private QueryGovernor.Ticket govern(Statement stmt, List<String> sqls) throws SQLException {
+      try {
+         return this._governor.start(stmt, this._operation, this._deadline, sqls);
+      }catch (SQLException e){
+         stmt.close ();
+         throw e;
+      }
+   }
+
+   /**
+    * Runs a query with a statement of the caller's, e.g. a FETCH from a
+    * cursor on a connection from openConnection(), under the budget of the
+    * running operation. The result set is the caller's to close.
+    *
+    * @param stmt the statement to run the query with, left open
+    * @param query the input query string
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultSet executeQuery (Statement stmt, String query) throws SQLException {
+      QueryGovernor.Ticket ticket = this._governor.start(stmt, this._operation, this._deadline,
+                                                         Collections.singletonList(query));
+      try {
+         return stmt.executeQuery (query);
+      }catch (SQLException e){
+         throw this._governor.failed(ticket, e);
+      }finally{
+         this._governor.finish(ticket);
+      }
+   }//end executeQuery
+
+   /**
+    * Like executeUpdate, but with a statement of the caller's, e.g. on a
+    * connection from openConnection().
+    *
+    * @param stmt the statement to run the update with, left open
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeUpdate (Statement stmt, String sql) throws SQLException {
+      QueryGovernor.Ticket ticket = this._governor.start(stmt, this._operation, this._deadline,
+                                                         Collections.singletonList(sql));
+      try {
+         stmt.executeUpdate (sql);
+      }catch (SQLException e){
+         throw this._governor.failed(ticket, e);
+      }finally{
+         this._governor.finish(ticket);
+      }
+   }//end executeUpdate
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
@@ -87,15 +429,68 @@ public class Hotel {
     */
    public void executeUpdate (String sql) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = primary().createStatement ();
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+      QueryGovernor.Ticket ticket = govern(stmt, Collections.singletonList(sql));
+      try {
+         // issues the update instruction
+         stmt.executeUpdate (sql);
+      }catch (SQLException e){
+         throw this._governor.failed(ticket, e);
+      }finally{
+         this._governor.finish(ticket);
 
-      // close the instruction
-      stmt.close ();
+         // close the instruction
+         stmt.close ();
+      }
+
+      // later reads of this session must see this write; inside a unit of
+      // work that happens at commit
+      if (this._router != null && this._shard == 0 && this._connection.getAutoCommit()) {
+         this._router.afterWrite();
+      }
    }//end executeUpdate
 
+   /**
+    * Method to send several update SQL statements in one round trip.
+    *
+    * @param sqls the input SQL strings
+    * @throws java.sql.SQLException when an update failed
+    */
+   public void executeBatch (List<String> sqls) throws SQLException {
+      Statement stmt = primary().createStatement ();
+      for (String sql : sqls) {
+         stmt.addBatch (sql);
+      }
+
+      QueryGovernor.Ticket ticket = govern(stmt, sqls);
+      try {
+         stmt.executeBatch ();
+      }catch (SQLException e){
+         throw this._governor.failed(ticket, e);
+      }finally{
+         this._governor.finish(ticket);
+         stmt.close ();
+      }
+   }//end executeBatch
+
+   /**
+    * Runs the statements issued by work through this object as one
+    * transaction on the primary (of the shard in use), retrying it on serialization failures and
+    * deadlocks. See UnitOfWork.
+    *
+    * @param isolation one of the Connection.TRANSACTION_* levels
+    * @return what the work returned
+    * @throws java.sql.SQLException when the transaction failed
+    */
+   public <T> T inTransaction (int isolation, UnitOfWork.Work<T> work) throws SQLException {
+      T result = UnitOfWork.run(this, primary(), isolation, work);
+      if (this._router != null && this._shard == 0) {
+         this._router.afterWrite();
+      }
+      return result;
+   }//end inTransaction
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
@@ -106,12 +501,10 @@ public class Hotel {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      return runQuery(query, Hotel::printResult);
+   }//end executeQuery
 
+   private static int printResult (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
@@ -120,24 +513,29 @@ public class Hotel {
       int numCol = rsmd.getColumnCount ();
       int rowCount = 0;
 
-      // iterates through the result set and output them to standard out.
+      // iterates through the result set and output them to standard out,
+      // buffering the text and printing it every PRINT_BATCH rows.
+      StringBuilder sb = new StringBuilder();
       boolean outputHeader = true;
       while (rs.next()){
 		 if(outputHeader){
 			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
+			sb.append(rsmd.getColumnName(i)).append('\t');
 			}
-			System.out.println();
+			sb.append('\n');
 			outputHeader = false;
 		 }
          for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
+            sb.append(rs.getString (i)).append('\t');
+         sb.append('\n');
+         if (++rowCount % PRINT_BATCH == 0){
+            System.out.print (sb);
+            sb.setLength (0);
+         }
       }//end while
-      stmt.close ();
+      System.out.print (sb);
       return rowCount;
-   }//end executeQuery
+   }//end printResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -149,12 +547,23 @@ public class Hotel {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      return runQuery(query, Hotel::returnResult);
+   }//end executeQueryAndReturnResult
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Like executeQueryAndReturnResult, but always on the primary (of the
+    * shard in use), for reads that must see the latest committed data, e.g.
+    * reloading a cache entry the change feed just invalidated.
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryOnPrimaryAndReturnResult (String query) throws SQLException {
+      return runStatement(primary(), query, Hotel::returnResult);
+   }//end executeQueryOnPrimaryAndReturnResult
 
+   private static List<List<String>> returnResult (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
@@ -172,9 +581,86 @@ public class Hotel {
 			record.add(rs.getString (i));
         result.add(record);
       }//end while
-      stmt.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end returnResult
+
+   /**
+    * Runs a query that spans hotels on every shard in parallel and prints
+    * the rows merged in order. Without sharding it is
+    * executeQueryAndPrintResult.
+    *
+    * @param query the input query string
+    * @param order the order of the query's ORDER BY, or null when it has none
+    * @param limit the query's LIMIT, or -1 when it has none
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when failed to execute the query on a shard
+    */
+   public int executeQueryOnAllShardsAndPrintResult (String query, Comparator<List<String>> order, int limit) throws SQLException {
+      if (this._shards == null) {
+         return executeQueryAndPrintResult(query);
+      }
+      List<List<List<String>>> perShard = this._shards.scatter((shard, connection) ->
+         runStatement(connection, query, Hotel::returnResultWithHeader));
+      List<String> header = perShard.get(0).get(0);
+      for (List<List<String>> rows : perShard) {
+         rows.remove(0);
+      }
+      List<List<String>> rows = ShardRouter.merge(perShard, order, limit);
+
+      StringBuilder sb = new StringBuilder();
+      if (!rows.isEmpty()) {
+         for (String column : header) {
+            sb.append(column).append('\t');
+         }
+         sb.append('\n');
+      }
+      for (List<String> row : rows) {
+         for (String value : row) {
+            sb.append(value).append('\t');
+         }
+         sb.append('\n');
+      }
+      System.out.print (sb);
+      return rows.size();
+   }
+
+   // returnResult with the column names as the first record
+   private static List<List<String>> returnResultWithHeader (ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      List<String> header = new ArrayList<String>();
+      for (int i = 1; i <= rsmd.getColumnCount (); i++) {
+         header.add(rsmd.getColumnName(i));
+      }
+      List<List<String>> result = returnResult(rs);
+      result.add(0, header);
+      return result;
+   }
+
+   /**
+    * Runs a write of reference data (Users, MaintenanceCompany), already
+    * committed on shard 0, on the other shards. It must be idempotent. A
+    * shard that missed it (e.g. it was down) gets the rows from
+    * ShardRebalancer's sync command.
+    *
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when it failed on a shard
+    */
+   public void replicateToShards (String sql) throws SQLException {
+      if (this._shards == null) {
+         return;
+      }
+      this._shards.scatter((shard, connection) -> {
+         if (shard > 0) {
+            Statement stmt = connection.createStatement ();
+            try {
+               stmt.executeUpdate (sql);
+            }finally{
+               stmt.close ();
+            }
+         }
+         return null;
+      });
+   }
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -185,20 +671,15 @@ public class Hotel {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
-
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+       return runQuery(query, rs -> {
+          int rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          return rowCount;
+       });
    }
 
    /**
@@ -211,7 +692,7 @@ public class Hotel {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = primary().createStatement ();
 
       ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
       if (rs.next())
@@ -220,7 +701,7 @@ public class Hotel {
    }
 
    public int getNewUserID(String sql) throws SQLException {
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = primary().createStatement ();
       ResultSet rs = stmt.executeQuery (sql);
       if (rs.next())
          return rs.getInt(1);
@@ -230,6 +711,19 @@ public class Hotel {
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      this._governor.close ();
+      if (this._changeFeed != null){
+         this._changeFeed.stop ();
+      }
+      for (ChangeFeed shardFeed : this._shardFeeds){
+         shardFeed.stop ();
+      }
+      if (this._router != null){
+         this._router.close ();
+      }
+      if (this._shards != null){
+         this._shards.close ();
+      }
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -245,12 +739,12 @@ public class Hotel {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length < 3 || args.length > 5) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Hotel.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [<replica host:port>,...] [shards=<dbname or host:port/dbname>,...]");
          return;
       }//end if
 
@@ -265,6 +759,19 @@ public class Hotel {
          String dbport = args[1];
          String user = args[2];
          esql = new Hotel (dbname, dbport, user, "");
+         for (int i = 3; i < args.length; i++) {
+            if (args[i].startsWith("shards=")) {
+               for (String shard : args[i].substring(7).split(",")) {
+                  esql.addShard(shard.trim(), user, "");
+               }
+            } else {
+               for (String replica : args[i].split(",")) {
+                  esql.addReplica(replica.trim(), dbname, user, "");
+               }
+            }
+         }
+         esql.startShards();
+         esql.startChangeFeed();
 
          boolean keepon = true;
          while(keepon) {
@@ -298,6 +805,15 @@ public class Hotel {
                 System.out.println("8. View 5 regular Customers");
                 System.out.println("9. Place room repair Request to a company");
                 System.out.println("10. View room repair Requests history");
+                System.out.println("11. View availability calendar of a hotel");
+                System.out.println("12. Benchmark availability calendar");
+                System.out.println("13. View change feed statistics");
+                System.out.println("14. Export bookings, repairs or room updates");
+                System.out.println("15. Benchmark concurrent room updates");
+                System.out.println("16. View occupancy and revenue dashboard of a hotel");
+                System.out.println("17. Reconcile or rebuild occupancy and revenue rollups");
+                System.out.println("18. View price history of a room");
+                System.out.println("19. View revenue at booking time prices");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
@@ -312,6 +828,15 @@ public class Hotel {
                    case 8: viewRegularCustomers(esql, Integer.parseInt(authorisedUser)); break;
                    case 9: placeRoomRepairRequests(esql, Integer.parseInt(authorisedUser)); break;
                    case 10: viewRoomRepairHistory(esql, Integer.parseInt(authorisedUser)); break;
+                   case 11: viewAvailabilityCalendar(esql); break;
+                   case 12: benchmarkAvailabilityCalendar(esql); break;
+                   case 13: viewChangeFeedStats(esql); break;
+                   case 14: exportHistory(esql, Integer.parseInt(authorisedUser)); break;
+                   case 15: benchmarkRoomUpdates(esql, Integer.parseInt(authorisedUser)); break;
+                   case 16: viewHotelDashboard(esql, Integer.parseInt(authorisedUser)); break;
+                   case 17: maintainRollups(esql, Integer.parseInt(authorisedUser)); break;
+                   case 18: viewRoomPriceHistory(esql, Integer.parseInt(authorisedUser)); break;
+                   case 19: viewRevenueAtBookingTime(esql, Integer.parseInt(authorisedUser)); break;
                    case 20: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
@@ -370,13 +895,31 @@ public class Hotel {
          String name = in.readLine();
          System.out.print("\tEnter password: ");
          String password = in.readLine(); 
+         esql.beginOperation(QueryGovernor.Operation.CREATE_USER);
          String type="Customer";
 			String query = String.format("INSERT INTO USERS (name, password, userType) VALUES ('%s','%s', '%s')", name, password, type);
-         esql.executeUpdate(query);
-         System.out.println ("User successfully created with userID = " + esql.getNewUserID("SELECT last_value FROM users_userID_seq"));
+         int userID = esql.inTransaction(Connection.TRANSACTION_READ_COMMITTED, uow -> {
+            uow.addBatch(query);
+            uow.flush();
+            // currval is per session, so this is our row even with other users signing up
+            return esql.getNewUserID("SELECT currval('users_userid_seq')");
+         });
+         // users are numbered on shard 0 and copied to the other shards
+         try {
+            esql.replicateToShards(String.format(
+               "INSERT INTO USERS (userID, name, password, userType) VALUES (%d, '%s', '%s', '%s') ON CONFLICT (userID) DO NOTHING",
+               userID, name, password, type));
+         }catch (SQLException e){
+            System.err.println ("User " + userID + " was created but is not on every shard yet, so some hotels cannot be booked"
+                                + " until rebalance.sh sync is run: " + e.getMessage ());
+            return;
+         }
+         System.out.println ("User successfully created with userID = " + userID);
          
       }catch(Exception e){
          System.err.println (e.getMessage ());
+      }finally{
+         esql.endOperation();
       }
    }//end CreateUser
 
@@ -391,6 +934,7 @@ public class Hotel {
          String user_name = in.readLine();
          System.out.print("\tEnter password: ");
          String password = in.readLine();
+         esql.beginOperation(QueryGovernor.Operation.LOG_IN);
 
          String query = String.format("SELECT * FROM Users WHERE name = '%s' AND password = '%s'", user_name, password);
          int userNum = esql.executeQuery(query);
@@ -409,6 +953,8 @@ public class Hotel {
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return null;
+      }finally{
+         esql.endOperation();
       }
    }//end
 
@@ -422,17 +968,21 @@ public class Hotel {
 
 		System.out.print("\tPlease enter a longitude: ");
 		double user_longitude = scanner.nextDouble();
+		esql.beginOperation(QueryGovernor.Operation.VIEW_HOTELS);
 
 		System.out.println("You entered: " + user_latitude +  ", " + user_longitude + "\n");	
 		
 		String query = String.format ("SELECT hotelName FROM Hotel WHERE calculate_distance('%f', '%f', latitude, longitude) < 30;", user_latitude, user_longitude);
 			
-		int row_count = esql.executeQueryAndPrintResult(query);	
+		int row_count = esql.executeQueryOnAllShardsAndPrintResult(query, null, -1);
 	}
 
 	catch (Exception e){
 		System.err.println(e.getMessage());
 	}
+	finally {
+		esql.endOperation();
+	}
    
    }
 
@@ -468,6 +1018,7 @@ public class Hotel {
 		System.out.print("\tTo browse the available rooms at a hotel, please enter a hotel ID: ");
 		Scanner scanner = new Scanner(System.in);
 		int user_hotel_id = scanner.nextInt();
+		esql.useHotel(user_hotel_id);
 
 		System.out.print("\tPlease enter a date to check availability: ");
 		String user_date = in.readLine();
@@ -477,6 +1028,25 @@ public class Hotel {
 			return;
 		}
 
+		esql.beginOperation(QueryGovernor.Operation.VIEW_ROOMS);
+
+		RoomCache cache = esql.getRoomCache();
+		if (cache != null) {
+			//rooms and bookings kept current by the change feed
+			Set<Integer> booked = cache.getBooked(esql, user_hotel_id, LocalDate.parse(user_date, RoomCalendar.USER_DATE));
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<Integer, Integer> room : cache.getRooms(esql, user_hotel_id).entrySet()) {
+				if (!booked.contains(room.getKey())) {
+					if (sb.length() == 0) {
+						sb.append("roomnumber\tprice\t\n");
+					}
+					sb.append(room.getKey()).append('\t').append(room.getValue()).append("\t\n");
+				}
+			}
+			System.out.print(sb);
+			return;
+		}
+
 		String query = String.format("SELECT roomNumber, price\n" +
 						"FROM Rooms R\n" +
 						"WHERE R.hotelID = '%d' AND roomNumber NOT IN(\n" +
@@ -489,6 +1059,9 @@ public class Hotel {
 	catch (Exception e) {
 		System.err.println(e.getMessage());
 	}
+	finally {
+		esql.endOperation();
+	}
    
    }
    public static void bookRooms(Hotel esql, int user_id) {
@@ -497,6 +1070,7 @@ public class Hotel {
 
 		System.out.print("\tTo book a room, please first input a hotel ID: ");
 		int user_hotel_id = scanner.nextInt();
+		esql.useHotel(user_hotel_id);
 		
 		System.out.print("\tPlease enter a room number: ");
 		int user_room_number = scanner.nextInt();
@@ -509,6 +1083,8 @@ public class Hotel {
 			return;
 		}
 
+		esql.beginOperation(QueryGovernor.Operation.BOOK_ROOM);
+
 		String query = String.format("SELECT price\n" +
 						"FROM Rooms\n" +
 						"WHERE Rooms.HotelID = '%d' AND Rooms.roomNumber = '%d' AND Rooms.roomNumber NOT IN (\n" +
@@ -517,15 +1093,23 @@ public class Hotel {
 							"WHERE hotelID = '%d' AND RoomBookings.roomNumber = '%d' AND bookingDate = '%s');", user_hotel_id, user_room_number, 
 							user_hotel_id, user_room_number, user_date);
 
-		int row_count = esql.executeQueryAndPrintResult(query);
+		String update_bookings = String.format("INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate) VALUES('%d', '%d', '%d', '%s');", user_id, user_hotel_id, user_room_number, user_date);
+
+		//check and insert in one serializable transaction, so two customers cannot book the same night
+		List<List<String>> price = esql.inTransaction(Connection.TRANSACTION_SERIALIZABLE, uow -> {
+			List<List<String>> available = esql.executeQueryAndReturnResult(query);
+			if (!available.isEmpty()) {
+				uow.addBatch(update_bookings);
+			}
+			return available;
+		});
 	
-		if(row_count == 0) {
+		if(price.isEmpty()) {
 			System.out.print("\n\tNo rooms with your specifications found. Please enter an available hotel room for a specific date.\n\n");
 		}
 
 		else {
-			String update_bookings = String.format("INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate) VALUES('%d', '%d', '%d', '%s');", user_id, user_hotel_id, user_room_number, user_date);
-			esql.executeUpdate(update_bookings);
+			System.out.print("price\t\n" + price.get(0).get(0) + "\t\n");
 
 			String checking_query = String.format("SELECT * FROM RoomBookings");
 			int check_rows = esql.executeQueryAndPrintResult(checking_query);
@@ -536,6 +1120,9 @@ public class Hotel {
 	catch(Exception e) {
 		System.err.println(e.getMessage());
 	}
+	finally {
+		esql.endOperation();
+	}
 
 
    }
@@ -545,12 +1132,14 @@ public class Hotel {
 
    public static void viewRecentBookingsfromCustomer(Hotel esql, int UserID) {
 	try {
+		esql.beginOperation(QueryGovernor.Operation.VIEW_RECENT_BOOKINGS);
 		String query = String.format("SELECT RB.hotelID, RB.roomNumber, R.price, RB.bookingDate\n" +
 						"FROM RoomBookings RB\n" +
 						"INNER JOIN Rooms R ON RB.hotelID = R.hotelID AND RB.roomNumber = R.roomNumber\n" +
 						"WHERE RB.customerID = '%d'\n" +
 						"ORDER BY RB.bookingDate DESC LIMIT 5;", UserID);
-		int row_count = esql.executeQueryAndPrintResult(query);
+		//bookingDate comes back as yyyy-mm-dd, so text order is date order
+		int row_count = esql.executeQueryOnAllShardsAndPrintResult(query, (a, b) -> b.get(3).compareTo(a.get(3)), 5);
 				
 	
 	
@@ -560,6 +1149,9 @@ public class Hotel {
 	catch(Exception e) {
 		System.err.println(e.getMessage());
 	}	
+	finally {
+		esql.endOperation();
+	}
    
    }
 
@@ -579,11 +1171,6 @@ public class Hotel {
 		System.out.print("\tTo update room information, please first input a hotel ID: ");
 		int mgmr_hotel_id = scanner.nextInt();
 
-		if(!checkIfManagesHotel(esql, UserID, mgmr_hotel_id)) {
-			System.out.print("\n\nPermission DENIED. You do not manage this hotel.\n\n");
-			return;
-		}
-
 		System.out.print("\tPlease enter a room number: ");
 		int mgmr_room_number = scanner.nextInt();
 		
@@ -594,12 +1181,24 @@ public class Hotel {
 		System.out.print("\tPlease enter a image URL to set the room to: ");
 		String mgmr_image_url = in.readLine();
 
+		esql.useHotel(mgmr_hotel_id);
+		esql.beginOperation(QueryGovernor.Operation.UPDATE_ROOM);
+		if(!checkIfManagesHotel(esql, UserID, mgmr_hotel_id)) {
+			System.out.print("\n\nPermission DENIED. You do not manage this hotel.\n\n");
+			return;
+		}
+
 		String update_room_command = String.format("UPDATE Rooms\n" +
 							   "SET price = '%d', imageURL = '%s'\n" +
 							   "WHERE hotelID = '%d' AND roomNumber = '%d';", mgmr_price, mgmr_image_url, mgmr_hotel_id, mgmr_room_number);
 
-		esql.executeUpdate(update_room_command);
-		updateChangeLogs(esql, UserID, mgmr_hotel_id, mgmr_room_number);
+		//the new price and its log row are committed together
+		esql.inTransaction(Connection.TRANSACTION_READ_COMMITTED, uow -> {
+			uow.addBatch(update_room_command);
+			uow.addBatch(changeLogStatement(UserID, mgmr_hotel_id, mgmr_room_number));
+			return null;
+		});
+		esql.priceChanged(mgmr_hotel_id, mgmr_room_number);
 
 		int row_cnt = esql.executeQueryAndPrintResult("SELECT * FROM Rooms ORDER BY hotelID ASC, roomNumber ASC");
 		System.out.println("\n\n------------------\n\n");
@@ -609,6 +1208,9 @@ public class Hotel {
 	catch (Exception e) {
 		System.err.println(e.getMessage());
 	}
+	finally {
+		esql.endOperation();
+	}
 
    }
 
@@ -662,11 +1264,7 @@ public class Hotel {
 
    public static void updateChangeLogs(Hotel esql, int managerID, int hotelID, int roomNumber) {
    	try{
-		String currentDateAndTime = getCurrTime();
-		String update_log_stmt = String.format ("INSERT INTO RoomUpdatesLog (managerID, hotelID, roomNumber, updatedOn)\n" +
-							"VALUES('%s', '%d', '%d', '%s');", Integer.toString(managerID), hotelID, roomNumber, currentDateAndTime);
-
-		esql.executeUpdate(update_log_stmt);
+		esql.executeUpdate(changeLogStatement(managerID, hotelID, roomNumber));
 	}
 
 	catch (Exception e) {
@@ -675,6 +1273,13 @@ public class Hotel {
    }
 
 
+   public static String changeLogStatement(int managerID, int hotelID, int roomNumber) {
+	String currentDateAndTime = getCurrTime();
+	return String.format ("INSERT INTO RoomUpdatesLog (managerID, hotelID, roomNumber, updatedOn)\n" +
+				"VALUES('%s', '%d', '%d', '%s');", Integer.toString(managerID), hotelID, roomNumber, currentDateAndTime);
+   }
+
+
    public static String getCurrTime() {
    	LocalDateTime currentDateTime = LocalDateTime.now();
 	DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
@@ -685,6 +1290,7 @@ public class Hotel {
 
    public static void viewRecentUpdates(Hotel esql, int managerID) {
    	try {
+		esql.beginOperation(QueryGovernor.Operation.VIEW_RECENT_UPDATES);
 		if(!checkIfManager(esql, managerID)) {
 			System.out.print("\n\nPermission DENIED. Not a manager. \n\n");
 			return;
@@ -697,15 +1303,22 @@ public class Hotel {
 		String query = String.format("SELECT *\n" +
 					     "FROM RoomUpdatesLog\n" +
 					     "WHERE  managerID = '%s'\n" +
-					     "ORDER BY updateNumber DESC LIMIT 5;", Integer.toString(managerID));
+					     "ORDER BY updatedOn DESC, updateNumber DESC LIMIT 5;", Integer.toString(managerID));
 
-		int row_count = esql.executeQueryAndPrintResult(query);
+		//update numbers of different shards are not in time order, so the latest are picked by updatedOn
+		int row_count = esql.executeQueryOnAllShardsAndPrintResult(query, (a, b) -> {
+			int c = b.get(4).compareTo(a.get(4));
+			return c != 0 ? c : Long.compare(Long.parseLong(b.get(0).trim()), Long.parseLong(a.get(0).trim()));
+		}, 5);
 	
 	}
 
 	catch(Exception e) {
 		System.err.println(e.getMessage());
 	}
+	finally {
+		esql.endOperation();
+	}
    
    
    
@@ -759,10 +1372,13 @@ public class Hotel {
                                                                                     "FROM Hotel H2 " +
                                                                                     "WHERE H2.managerUserID = %s)", userID);
             }
-		esql.executeQueryAndPrintResult(query);
+		esql.beginOperation(QueryGovernor.Operation.VIEW_BOOKING_HISTORY);
+		esql.executeQueryOnAllShardsAndPrintResult(query, null, -1);
 	    
       }catch(Exception e){
          System.out.println(e.getMessage());
+      }finally{
+         esql.endOperation();
       }
    }
 	
@@ -775,6 +1391,8 @@ public class Hotel {
          System.out.print("\tEnter Hotel ID: ");
     	 Scanner scanner = new Scanner(System.in);
 	 int hotelID = scanner.nextInt();
+	 esql.useHotel(hotelID);
+	 esql.beginOperation(QueryGovernor.Operation.VIEW_REGULAR_CUSTOMERS);
 	
 	//Check if hotel exists
 	String checkHotel = String.format("SELECT COUNT(*) FROM Hotel H WHERE H.hotelID = %s", hotelID);
@@ -792,26 +1410,35 @@ public class Hotel {
 
          String query = String.format("SELECT R.customerID " +
                                        "FROM RoomBookings R " + 
+                                       "WHERE R.hotelID = %d " +
                                        "GROUP BY R.customerID " +
                                        "ORDER BY COUNT(R.customerID) DESC " +
-                                       "LIMIT 5");
+                                       "LIMIT 5", hotelID);
 	esql.executeQueryAndPrintResult(query);	
       }catch(Exception e){
          System.out.println(e.getMessage());
+      }finally{
+         esql.endOperation();
       }
    }
    public static void placeRoomRepairRequests(Hotel esql, int userID) {
 	try {
-	 
- 	 if(!checkIfManager(esql, userID)){
+	 if(!checkIfManager(esql, userID)){
 	 	System.out.println("\tYou are not a manager.\n");
-		return;
-	 }        
+	 	return;
+	 }
 
 	 //hotelID, roomNumber, companyID
-         System.out.print("\tEnter Hotel ID: ");
-    	 Scanner scanner = new Scanner(System.in);
+	 System.out.print("\tEnter Hotel ID: ");
+	 Scanner scanner = new Scanner(System.in);
 	 int hotelID = scanner.nextInt();
+	 System.out.print("\tEnter Room Number: ");
+	 int roomNumber = scanner.nextInt();
+	 System.out.print("\tEnter Company ID: ");
+	 int companyID = scanner.nextInt();
+
+	 esql.useHotel(hotelID);
+	 esql.beginOperation(QueryGovernor.Operation.PLACE_REPAIR_REQUEST);
 
 	 //Check if this hotel exists and if the user manages this hotel
 	 String checkHotel = String.format("SELECT COUNT(*) FROM Hotel H WHERE H.hotelID = %s", hotelID);
@@ -821,10 +1448,7 @@ public class Hotel {
 	 	System.out.println("\tHotel either does not exist or you do not manage this hotel.\n");
 	 	return;
 	 }
-	
-         System.out.print("\tEnter Room Number: ");
-         int roomNumber = scanner.nextInt();
- 	 
+
 	 String checkRoom = String.format("SELECT COUNT(*) FROM Rooms R WHERE R.hotelID = %s AND R.roomNumber = %s", hotelID, roomNumber);
 	 numRows = esql.executeQuery(checkRoom);
 
@@ -833,9 +1457,6 @@ public class Hotel {
 	 	return;
 	 }
 	 
-         System.out.print("\tEnter Company ID: ");
-         int companyID = scanner.nextInt();
-
 	 String checkCompany = String.format("SELECT COUNT(*) FROM MaintenanceCompany M WHERE M.companyID = %s", companyID);
 	 numRows = esql.executeQuery(checkCompany);
 
@@ -848,17 +1469,18 @@ public class Hotel {
          //String day = currentDate.format(dateFormatter);
 	
 	 String day = getCurrTime();
-         String query = String.format("INSERT INTO RoomRepairs VALUES (DEFAULT, %s, %s, %s, '%s')", companyID, hotelID, roomNumber, day);
-	 esql.executeUpdate(query);
-	
-         String temp = String.format("SELECT MAX(R.repairID) FROM RoomRepairs R");
-	 List<List<String>> temp2 = esql.executeQueryAndReturnResult(temp);
-	 query = String.format("INSERT INTO RoomRepairRequests VALUES (DEFAULT, %s, %s)", userID, temp2.get(0).get(0));
-										 //"FROM RoomRepairs R)", userID); 
-										 //"WHERE R.repairID >= ALL R.repairID)", userID);
-         esql.executeUpdate(query);
+         String repair = String.format("INSERT INTO RoomRepairs VALUES (DEFAULT, %s, %s, %s, '%s')", companyID, hotelID, roomNumber, day);
+	 //currval is the repairID just inserted by this session
+	 String request = String.format("INSERT INTO RoomRepairRequests VALUES (DEFAULT, %s, currval('roomrepairs_repairid_seq'))", userID);
+	 esql.inTransaction(Connection.TRANSACTION_READ_COMMITTED, uow -> {
+	 	uow.addBatch(repair);
+	 	uow.addBatch(request);
+	 	return null;
+	 });
       }catch (Exception e) {
  	 System.err.println(e.getMessage());
+      }finally{
+         esql.endOperation();
       }
 
    }
@@ -873,6 +1495,8 @@ public class Hotel {
          System.out.print("\tWhat is the Hotel ID? ");
     	 Scanner scanner = new Scanner(System.in);
 	 int hotelID = scanner.nextInt();
+	 esql.useHotel(hotelID);
+	 esql.beginOperation(QueryGovernor.Operation.VIEW_REPAIR_HISTORY);
 
 	 String checkHotel = String.format("SELECT COUNT (*) FROM Hotel H WHERE H.hotelID = %s", hotelID);
 	 int numRows = esql.executeQuery(checkHotel);
@@ -883,11 +1507,373 @@ public class Hotel {
 	 }
 		
          String query = String.format("SELECT R.companyID, R.hotelID, R.roomNumber, R.RepairDate FROM RoomRepairs R, Hotel H WHERE R.hotelID = H.hotelID AND managerUserID = %s", userID);
-         esql.executeQueryAndPrintResult(query);
+         esql.executeQueryOnAllShardsAndPrintResult(query, null, -1);
+      }catch (Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         esql.endOperation();
+      }
+
+   }
+
+   public static void viewAvailabilityCalendar(Hotel esql) {
+      try {
+	 System.out.print("\tTo view the availability calendar of a hotel, please enter a hotel ID: ");
+	 Scanner scanner = new Scanner(System.in);
+	 int hotelID = scanner.nextInt();
+	 esql.useHotel(hotelID);
+
+	 LocalDate[] range = readDateRange();
+	 if (range == null) {
+	 	return;
+	 }
+
+	 esql.beginOperation(QueryGovernor.Operation.AVAILABILITY_CALENDAR);
+
+	 RoomCalendar calendar = RoomCalendar.load(esql, hotelID, range[0], range[1]);
+	 if (calendar.getNumRooms() == 0) {
+	 	System.out.println("\tThis hotel does not exist or has no rooms.\n");
+	 	return;
+	 }
+	 System.out.print(calendar.render());
+      }catch (Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         esql.endOperation();
+      }
+   }
+
+   public static void benchmarkAvailabilityCalendar(Hotel esql) {
+      try {
+	 System.out.print("\tEnter Hotel ID: ");
+	 Scanner scanner = new Scanner(System.in);
+	 int hotelID = scanner.nextInt();
+	 esql.useHotel(hotelID);
+
+	 LocalDate[] range = readDateRange();
+	 if (range == null) {
+	 	return;
+	 }
+
+	 esql.beginOperation(QueryGovernor.Operation.BENCHMARK);
+
+	 System.out.println(RoomCalendar.benchmark(esql, hotelID, range[0], range[1], 5));
+      }catch (Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         esql.endOperation();
+      }
+   }
+
+   public static void viewChangeFeedStats(Hotel esql) {
+      if (esql.getChangeFeed() == null) {
+         System.out.println("\tThe change feed is not running.\n");
+         return;
+      }
+      System.out.println(esql.getChangeFeed().getStats());
+   }
+
+   public static void exportHistory(Hotel esql, int userID) {
+      try {
+	 if(!checkIfManager(esql, userID)){
+	 	System.out.println("\tYou are not a Manager.\n");
+		return;
+	 }
+
+	 Exporter.Options options = new Exporter.Options();
+	 options.managerID = userID;
+
+	 System.out.print("\tWhat do you want to export? (bookings | repairs | updates): ");
+	 options.table = in.readLine().trim();
+
+	 System.out.print("\tFormat? (csv | jsonl | columnar): ");
+	 options.format = Exporter.Format.valueOf(in.readLine().trim().toUpperCase());
+
+	 System.out.print("\tCompress with gzip? (y | n): ");
+	 options.gzip = in.readLine().trim().equals("y");
+
+	 System.out.print("\tHotel ID (leave empty for all your hotels): ");
+	 String hotel = in.readLine().trim();
+	 if (!hotel.isEmpty()) {
+	 	options.hotelID = Integer.parseInt(hotel);
+	 	esql.useHotel(options.hotelID);
+	 }
+
+	 System.out.print("\tDo you want to input a date range? (y | n): ");
+	 if (in.readLine().trim().equals("y")) {
+	 	LocalDate[] range = readDateRange();
+	 	if (range == null) {
+	 		return;
+	 	}
+	 	options.from = range[0];
+	 	options.to = range[1];
+	 }
+
+	 esql.beginOperation(QueryGovernor.Operation.EXPORT);
+	 if (options.hotelID == null && esql.getShardCount() > 1) {
+	 	//one file per shard
+	 	for (int shard = 0; shard < esql.getShardCount(); shard++) {
+	 		esql.useShard(shard);
+	 		options.path = "shard" + shard + "_" + options.table + options.format.extension + (options.gzip ? ".gz" : "");
+	 		new Exporter(esql).export(options, System.out);
+	 	}
+	 } else {
+	 	new Exporter(esql).export(options, System.out);
+	 }
+      }catch (Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         esql.endOperation();
+      }
+   }
+
+   public static void benchmarkRoomUpdates(Hotel esql, int userID) {
+      try {
+	 if(!checkIfManager(esql, userID)){
+	 	System.out.println("\tYou are not a Manager.\n");
+	 	return;
+	 }
+
+	 System.out.print("\tEnter Hotel ID: ");
+	 Scanner scanner = new Scanner(System.in);
+	 int hotelID = scanner.nextInt();
+	 System.out.print("\tNumber of concurrent managers: ");
+	 int managers = scanner.nextInt();
+	 System.out.print("\tUpdates per manager (run on scratch copies of the hotel's rooms): ");
+	 int updates = scanner.nextInt();
+
+	 esql.useHotel(hotelID);
+	 esql.beginOperation(QueryGovernor.Operation.BENCHMARK);
+	 if(!checkIfManagesHotel(esql, userID, hotelID)){
+	 	System.out.println("\tYou do not manage that hotel.\n");
+	 	return;
+	 }
+
+	 System.out.print(UnitOfWork.benchmarkRoomUpdates(esql, userID, hotelID, managers, updates));
+      }catch (Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         esql.endOperation();
+      }
+   }
+
+   public static void viewHotelDashboard(Hotel esql, int userID) {
+      try {
+	 if(!checkIfManager(esql, userID)){
+	 	System.out.println("\tYou are not a Manager.\n");
+	 	return;
+	 }
+
+	 System.out.print("\tEnter Hotel ID: ");
+	 Scanner scanner = new Scanner(System.in);
+	 int hotelID = scanner.nextInt();
+	 LocalDate[] range = readDateRange();
+	 if (range == null) {
+	 	return;
+	 }
+
+	 esql.useHotel(hotelID);
+	 esql.beginOperation(QueryGovernor.Operation.HOTEL_DASHBOARD);
+	 if(!checkIfManagesHotel(esql, userID, hotelID)){
+	 	System.out.println("\tYou do not manage that hotel.\n");
+	 	return;
+	 }
+
+	 //folds in one bounded batch of the queue; option 17 drains all of it
+	 try {
+	 	if (HotelRollups.refresh(esql) >= HotelRollups.REFRESH_BATCH) {
+	 		System.out.println("\tThe rollups are catching up with recent changes; figures may be behind.\n");
+	 	}
+	 }catch (SQLException e){
+	 	System.out.println("\tThe rollups could not be refreshed, figures may be behind: " + e.getMessage() + "\n");
+	 }
+	 HotelRollups.Summary total = HotelRollups.summary(esql, hotelID, range[0], range[1]);
+	 System.out.print(HotelRollups.render(total, HotelRollups.series(esql, hotelID, range[0], range[1])));
+      }catch (Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         esql.endOperation();
+      }
+   }
+
+   public static void maintainRollups(Hotel esql, int userID) {
+      try {
+	 if(!checkIfManager(esql, userID)){
+	 	System.out.println("\tYou are not a Manager.\n");
+		return;
+	 }
+
+	 System.out.print("\tFold in all queued changes, reconcile the rollups or rebuild them from scratch? (refresh | reconcile | rebuild): ");
+	 String choice = in.readLine().trim();
+	 if (!choice.equals("refresh") && !choice.equals("rebuild") && !choice.equals("reconcile")) {
+	 	System.out.println("Unrecognized choice!");
+	 	return;
+	 }
+	 esql.beginOperation(QueryGovernor.Operation.MAINTAIN_ROLLUPS);
+	 //every shard keeps the rollups of its own hotels
+	 for (int shard = 0; shard < esql.getShardCount(); shard++) {
+	 	esql.useShard(shard);
+	 	String where = esql.getShardCount() > 1 ? " on shard " + shard : "";
+	 	if (choice.equals("refresh")) {
+	 		long folded = 0;
+	 		int batch;
+	 		do {
+	 			batch = HotelRollups.refresh(esql);
+	 			folded += batch;
+	 		} while (batch >= HotelRollups.REFRESH_BATCH);
+	 		System.out.println("\t" + folded + " queued changes folded in" + where + ".\n");
+	 	} else if (choice.equals("rebuild")) {
+	 		HotelRollups.rebuild(esql);
+	 		System.out.println("\tThe rollups have been rebuilt" + where + ".\n");
+	 	} else {
+	 		List<String> mismatches = HotelRollups.reconcile(esql);
+	 		if (mismatches.isEmpty()) {
+	 			System.out.println("\tThe rollups match a full recompute" + where + ".\n");
+	 		}
+	 		for (String mismatch : mismatches) {
+	 			System.out.println("\t" + mismatch + where);
+	 		}
+	 	}
+	 }
       }catch (Exception e){
          System.err.println(e.getMessage());
+      }finally{
+         esql.endOperation();
       }
+   }
+
+   public static void viewRoomPriceHistory(Hotel esql, int userID) {
+      try {
+	 if(!checkIfManager(esql, userID)){
+	 	System.out.println("\tYou are not a Manager.\n");
+	 	return;
+	 }
 
+	 Scanner scanner = new Scanner(System.in);
+	 System.out.print("\tEnter Hotel ID: ");
+	 int hotelID = scanner.nextInt();
+	 System.out.print("\tEnter Room Number: ");
+	 int roomNumber = scanner.nextInt();
+
+	 esql.useHotel(hotelID);
+	 esql.beginOperation(QueryGovernor.Operation.VIEW_PRICE_HISTORY);
+	 if(!checkIfManagesHotel(esql, userID, hotelID)){
+	 	System.out.println("\tYou do not manage that hotel.\n");
+	 	return;
+	 }
+	 esql.executeQueryAndPrintResult(String.format(
+	 	"SELECT validFrom, price, imageURL FROM RoomPriceHistory WHERE hotelID = %d AND roomNumber = %d ORDER BY validFrom",
+	 	hotelID, roomNumber));
+	 //no slot is held while the date is typed
+	 esql.endOperation();
+
+	 System.out.print("\tEnter a date to see the price of the room on it (leave empty to skip): ");
+	 String date = in.readLine().trim();
+	 if (date.isEmpty()) {
+	 	return;
+	 }
+	 if (isValidDate(date) == false) {
+	 	System.out.print("\tInvalid date. Please enter a date in the format MM/dd/yyyy or M/dd/yyyy.\n");
+	 	return;
+	 }
+	 esql.useHotel(hotelID);
+	 esql.beginOperation(QueryGovernor.Operation.VIEW_PRICE_HISTORY);
+	 // the price at the end of the day
+	 List<List<String>> price = esql.executeQueryAndReturnResult(String.format(
+	 	"SELECT room_price_at(%d, %d, TIMESTAMP '%s 23:59:59.999999')",
+	 	hotelID, roomNumber, LocalDate.parse(date, RoomCalendar.USER_DATE)));
+	 String value = price.get(0).get(0);
+	 System.out.println(value == null ? "\tThe price of the room on that date is not known.\n"
+	 	: "\tThe room cost " + value.trim() + " on " + date + ".\n");
+      }catch (Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         esql.endOperation();
+      }
+   }
+
+   public static void viewRevenueAtBookingTime(Hotel esql, int userID) {
+      try {
+	 if(!checkIfManager(esql, userID)){
+	 	System.out.println("\tYou are not a Manager.\n");
+		return;
+	 }
+
+	 System.out.print("\tHotel ID (leave empty for all your hotels): ");
+	 String hotel = in.readLine().trim();
+	 Integer hotelID = hotel.isEmpty() ? null : Integer.valueOf(hotel);
+
+	 LocalDate[] range = readDateRange();
+	 if (range == null) {
+	 	return;
+	 }
+	 esql.beginOperation(QueryGovernor.Operation.REVENUE_AT_BOOKING_TIME);
+
+	 // hotelID -> room-nights, revenue at booking time, revenue at current prices, room-nights without a known price
+	 final Map<Integer, long[]> totals = new TreeMap<Integer, long[]>();
+	 long nights = 0;
+	 //one pass per shard, or only over the hotel's shard
+	 for (int shard = 0; shard < esql.getShardCount(); shard++) {
+	 	if (hotelID != null) {
+	 		esql.useHotel(hotelID);
+	 	} else {
+	 		esql.useShard(shard);
+	 	}
+	 	final PriceHistory history = esql.getPriceHistory();
+	 	nights += history.priceBookings(esql, userID, hotelID, range[0], range[1], (h, room, day, price) -> {
+	 		long[] t = totals.get(h);
+	 		if (t == null) {
+	 			t = new long[4];
+	 			totals.put(h, t);
+	 		}
+	 		t[0]++;
+	 		if (price < 0) {
+	 			t[3]++;
+	 		} else {
+	 			t[1] += price;
+	 		}
+	 		t[2] += Math.max(0, history.currentPrice(h, room));
+	 	});
+	 	if (hotelID != null) {
+	 		break;
+	 	}
+	 }
+
+	 System.out.println(String.format("%-10s %12s %16s %16s %10s", "Hotel", "Room-nights", "Booked revenue", "At today's price", "Unpriced"));
+	 for (Map.Entry<Integer, long[]> entry : totals.entrySet()) {
+	 	long[] t = entry.getValue();
+	 	System.out.println(String.format("%-10d %12d %16d %16d %10d", entry.getKey(), t[0], t[1], t[2], t[3]));
+	 }
+	 System.out.println("\t" + nights + " room-nights priced.\n");
+      }catch (Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         esql.endOperation();
+      }
+   }
+
+   /*
+    * Reads a beginning and ending date from the keyboard
+    * @return the two dates or null if either is invalid or the ending date
+    *         is before the beginning date
+    **/
+   public static LocalDate[] readDateRange() throws IOException {
+      System.out.print("\tPlease enter the beginning Date Range: ");
+      String date_start = in.readLine();
+      System.out.print("\tPlease enter the Ending Date Range: ");
+      String date_end = in.readLine();
+
+      if (isValidDate(date_start) == false || isValidDate(date_end) == false) {
+         System.out.print("\tInvalid date. Please enter a date in the format MM/dd/yyyy or M/dd/yyyy.\n");
+         return null;
+      }
+      LocalDate start = LocalDate.parse(date_start, RoomCalendar.USER_DATE);
+      LocalDate end = LocalDate.parse(date_end, RoomCalendar.USER_DATE);
+      if (end.isBefore(start)) {
+         System.out.print("\tThe ending date must not be before the beginning date.\n");
+         return null;
+      }
+      return new LocalDate[] { start, end };
    }
 
 }//end Hotel
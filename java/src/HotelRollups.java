@@ -0,0 +1,297 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * This class answers occupancy and revenue dashboards of a hotel from the
+ * daily and monthly rollup tables of create_rollups.sql instead of scanning
+ * RoomBookings. A date range is summed from the months it fully covers plus
+ * the days at either end, so the cost does not grow with the bookings.
+ *
+ * Triggers queue every booking, repair and price change in RollupPending;
+ * refresh() folds the queue into the rollups. Rows are claimed with
+ * DELETE ... RETURNING, so a change committed while a refresh runs is left
+ * for the next one rather than lost. A refresh claims at most REFRESH_BATCH
+ * changes, oldest first, so it fits the budget of a dashboard however long
+ * the queue has grown, and each dashboard drains a part of it. Revenue is kept at the current price of
+ * each room: RollupRoomPrice records the price the rolled up nights of a room
+ * are valued at, and a price change revalues them by the difference.
+ *
+ */
+public class HotelRollups {
+
+   // at most this many days are listed one by one, longer ranges are listed by month
+   private static final int MAX_DAILY_ROWS = 62;
+   private static final int MAX_REPORTED_MISMATCHES = 20;
+   // most queued changes one refresh folds in
+   public static final int REFRESH_BATCH = 5000;
+
+   private static final String[] REFRESH = {
+      "CREATE TEMP TABLE IF NOT EXISTS RollupBatch (kind char(1), hotelID integer, roomNumber integer, day date, delta integer) "
+      + "ON COMMIT DELETE ROWS",
+      null, // claim(limit)
+      // rooms seen for the first time are valued at their current price
+      "INSERT INTO RollupRoomPrice SELECT R.hotelID, R.roomNumber, R.price FROM Rooms R "
+      + "WHERE (R.hotelID, R.roomNumber) IN (SELECT hotelID, roomNumber FROM RollupBatch) "
+      + "ON CONFLICT (hotelID, roomNumber) DO NOTHING",
+      upsert("HotelDailyRollup", "day", "B.day"),
+      upsert("HotelMonthlyRollup", "month", "date_trunc('month', B.day)::date"),
+      // every night of a repriced room, including the ones just added, moves to the new price
+      revalue("HotelDailyRollup", "day", "RB.bookingDate"),
+      revalue("HotelMonthlyRollup", "month", "date_trunc('month', RB.bookingDate)::date"),
+      "UPDATE RollupRoomPrice P SET price = R.price FROM Rooms R "
+      + "WHERE R.hotelID = P.hotelID AND R.roomNumber = P.roomNumber AND R.price <> P.price "
+      + "AND (P.hotelID, P.roomNumber) IN (SELECT hotelID, roomNumber FROM RollupBatch WHERE kind = 'P')"
+   };
+
+   private static final String[] REBUILD = {
+      // keeps writers out until the rebuild commits; taken before the snapshot is
+      "LOCK TABLE Rooms, RoomBookings, RoomRepairs IN SHARE MODE",
+      "DELETE FROM RollupPending",
+      "DELETE FROM RollupRoomPrice",
+      "DELETE FROM HotelDailyRollup",
+      "DELETE FROM HotelMonthlyRollup",
+      "INSERT INTO RollupRoomPrice SELECT hotelID, roomNumber, price FROM Rooms",
+      "INSERT INTO HotelDailyRollup SELECT * FROM HotelDailyRecompute",
+      "INSERT INTO HotelMonthlyRollup "
+      + "SELECT hotelID, date_trunc('month', day)::date, SUM(roomNights), SUM(revenue), SUM(repairRoomDays) "
+      + "FROM HotelDailyRollup GROUP BY hotelID, date_trunc('month', day)::date"
+   };
+
+   /**
+    * Moves queued changes to RollupBatch: the oldest limit ones, or all when
+    * limit is 0. A repriced room has its nights revalued from RoomBookings,
+    * so all of its queued bookings are claimed with the price change, or
+    * the ones left behind would be revalued now and again when folded in.
+    */
+   private static String claim(int limit) {
+      if (limit <= 0) {
+         return "WITH moved AS (DELETE FROM RollupPending RETURNING kind, hotelID, roomNumber, day, delta) "
+                + "INSERT INTO RollupBatch SELECT * FROM moved";
+      }
+      return String.format(
+         "WITH first AS (SELECT pendingID, kind, hotelID, roomNumber FROM RollupPending ORDER BY pendingID LIMIT %d), "
+         + "moved AS (DELETE FROM RollupPending WHERE pendingID IN (SELECT pendingID FROM first) "
+         + "OR (hotelID, roomNumber) IN (SELECT hotelID, roomNumber FROM first WHERE kind = 'P') "
+         + "RETURNING kind, hotelID, roomNumber, day, delta) "
+         + "INSERT INTO RollupBatch SELECT * FROM moved",
+         limit);
+   }
+
+   private static String upsert(String table, String key, String keyExpr) {
+      return String.format(
+         "INSERT INTO %1$s (hotelID, %2$s, roomNights, revenue, repairRoomDays) "
+         + "SELECT B.hotelID, %3$s, "
+         + "SUM(CASE WHEN B.kind = 'B' THEN B.delta ELSE 0 END), "
+         + "SUM(CASE WHEN B.kind = 'B' THEN B.delta * COALESCE(P.price, 0) ELSE 0 END), "
+         + "SUM(CASE WHEN B.kind = 'R' THEN B.delta ELSE 0 END) "
+         + "FROM RollupBatch B LEFT JOIN RollupRoomPrice P ON P.hotelID = B.hotelID AND P.roomNumber = B.roomNumber "
+         + "WHERE B.kind <> 'P' "
+         + "GROUP BY B.hotelID, %3$s "
+         + "ON CONFLICT (hotelID, %2$s) DO UPDATE SET "
+         + "roomNights = %1$s.roomNights + EXCLUDED.roomNights, "
+         + "revenue = %1$s.revenue + EXCLUDED.revenue, "
+         + "repairRoomDays = %1$s.repairRoomDays + EXCLUDED.repairRoomDays",
+         table, key, keyExpr);
+   }
+
+   private static String revalue(String table, String key, String keyExpr) {
+      return String.format(
+         "UPDATE %1$s T SET revenue = T.revenue + X.delta "
+         + "FROM (SELECT RB.hotelID, %3$s AS %2$s, SUM(R.price - P.price) AS delta "
+         + "FROM RollupRoomPrice P, Rooms R, RoomBookings RB "
+         + "WHERE (P.hotelID, P.roomNumber) IN (SELECT hotelID, roomNumber FROM RollupBatch WHERE kind = 'P') "
+         + "AND R.hotelID = P.hotelID AND R.roomNumber = P.roomNumber AND R.price <> P.price "
+         + "AND RB.hotelID = P.hotelID AND RB.roomNumber = P.roomNumber "
+         + "GROUP BY RB.hotelID, %3$s) X "
+         + "WHERE T.hotelID = X.hotelID AND T.%2$s = X.%2$s",
+         table, key, keyExpr);
+   }
+
+   /**
+    * The totals of a hotel over a date range.
+    */
+   public static class Summary {
+      public final LocalDate from;
+      public final LocalDate to;
+      public final int rooms;
+      public final long roomNights;
+      public final long revenue;
+      public final long repairRoomDays;
+
+      Summary(LocalDate from, LocalDate to, int rooms, long roomNights, long revenue, long repairRoomDays) {
+         this.from = from;
+         this.to = to;
+         this.rooms = rooms;
+         this.roomNights = roomNights;
+         this.revenue = revenue;
+         this.repairRoomDays = repairRoomDays;
+      }
+
+      public long getDays() {
+         return ChronoUnit.DAYS.between(from, to) + 1;
+      }
+
+      /**
+       * @return booked room-nights as a percentage of the room-nights of the range
+       */
+      public double getOccupancyPercent() {
+         long available = rooms * getDays();
+         return available == 0 ? 0 : 100.0 * roomNights / available;
+      }
+   }
+
+   /**
+    * Folds up to REFRESH_BATCH of the oldest queued changes into the
+    * rollups, in one transaction.
+    *
+    * @return the number of changes folded in; REFRESH_BATCH or more when more may be queued
+    * @throws java.sql.SQLException when the refresh failed; the changes stay queued
+    */
+   public static int refresh(final Hotel esql) throws SQLException {
+      return esql.inTransaction(Connection.TRANSACTION_SERIALIZABLE, uow -> applyQueued(esql, uow, REFRESH_BATCH));
+   }
+
+   private static int applyQueued(Hotel esql, UnitOfWork uow, int limit) throws SQLException {
+      for (String sql : REFRESH) {
+         uow.addBatch(sql != null ? sql : claim(limit));
+      }
+      uow.flush();
+      return Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM RollupBatch").get(0).get(0).trim());
+   }
+
+   /**
+    * Recomputes the rollups from the base tables. Writes to the base tables
+    * wait until it is done.
+    *
+    * @throws java.sql.SQLException when the rebuild failed; the rollups are left as they were
+    */
+   public static void rebuild(Hotel esql) throws SQLException {
+      esql.inTransaction(Connection.TRANSACTION_SERIALIZABLE, uow -> {
+         for (String sql : REBUILD) {
+            uow.addBatch(sql);
+         }
+         return null;
+      });
+   }
+
+   /**
+    * Refreshes the rollups and compares them, day by day and month by month,
+    * with a full recompute from the base tables taken in the same snapshot.
+    *
+    * @return a description of every mismatch (up to a limit), empty when they agree
+    * @throws java.sql.SQLException when the comparison failed
+    */
+   public static List<String> reconcile(final Hotel esql) throws SQLException {
+      return esql.inTransaction(Connection.TRANSACTION_SERIALIZABLE, uow -> {
+         applyQueued(esql, uow, 0);
+         List<String> mismatches = new ArrayList<String>();
+         compare(esql, mismatches, "HotelDailyRecompute", "HotelDailyRollup", "day");
+         compare(esql, mismatches,
+                 "(SELECT hotelID, date_trunc('month', day)::date AS month, SUM(roomNights) AS roomNights, "
+                 + "SUM(revenue) AS revenue, SUM(repairRoomDays) AS repairRoomDays "
+                 + "FROM HotelDailyRecompute GROUP BY hotelID, date_trunc('month', day)::date)",
+                 "HotelMonthlyRollup", "month");
+         return mismatches;
+      });
+   }
+
+   private static void compare(Hotel esql, List<String> mismatches, String expected, String actual, String key) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+         "SELECT COALESCE(E.hotelID, A.hotelID), COALESCE(E.%3$s, A.%3$s), "
+         + "COALESCE(E.roomNights, 0), COALESCE(A.roomNights, 0), COALESCE(E.revenue, 0), COALESCE(A.revenue, 0), "
+         + "COALESCE(E.repairRoomDays, 0), COALESCE(A.repairRoomDays, 0) "
+         + "FROM %1$s E FULL OUTER JOIN %2$s A ON E.hotelID = A.hotelID AND E.%3$s = A.%3$s "
+         + "WHERE COALESCE(E.roomNights, 0) <> COALESCE(A.roomNights, 0) "
+         + "OR COALESCE(E.revenue, 0) <> COALESCE(A.revenue, 0) "
+         + "OR COALESCE(E.repairRoomDays, 0) <> COALESCE(A.repairRoomDays, 0) "
+         + "ORDER BY 1, 2 LIMIT %4$d",
+         expected, actual, key, MAX_REPORTED_MISMATCHES));
+      for (List<String> row : rows) {
+         mismatches.add(String.format("%s hotel %s %s: room-nights %s (rollup %s), revenue %s (rollup %s), repair days %s (rollup %s)",
+                                      actual, row.get(0).trim(), row.get(1).trim(), row.get(2).trim(), row.get(3).trim(),
+                                      row.get(4).trim(), row.get(5).trim(), row.get(6).trim(), row.get(7).trim()));
+      }
+   }
+
+   /**
+    * Sums the rollups of a hotel over a date range, both ends included.
+    *
+    * @throws java.sql.SQLException when the query failed
+    */
+   public static Summary summary(Hotel esql, int hotelID, LocalDate from, LocalDate to) throws SQLException {
+      // [firstMonth, endMonth) are the months entirely inside the range
+      LocalDate firstMonth = from.getDayOfMonth() == 1 ? from : from.withDayOfMonth(1).plusMonths(1);
+      LocalDate endMonth = to.plusDays(1).withDayOfMonth(1);
+      if (endMonth.isBefore(firstMonth)) {
+         endMonth = firstMonth;
+      }
+      List<List<String>> result = esql.executeQueryAndReturnResult(String.format(
+         "SELECT (SELECT COUNT(*) FROM Rooms WHERE hotelID = %1$d), "
+         + "COALESCE(SUM(roomNights), 0), COALESCE(SUM(revenue), 0), COALESCE(SUM(repairRoomDays), 0) "
+         + "FROM (SELECT roomNights, revenue, repairRoomDays FROM HotelMonthlyRollup "
+         + "WHERE hotelID = %1$d AND month >= DATE '%4$s' AND month < DATE '%5$s' "
+         + "UNION ALL "
+         + "SELECT roomNights, revenue, repairRoomDays FROM HotelDailyRollup "
+         + "WHERE hotelID = %1$d AND day BETWEEN DATE '%2$s' AND DATE '%3$s' "
+         + "AND (day < DATE '%4$s' OR day >= DATE '%5$s')) X",
+         hotelID, from, to, firstMonth, endMonth));
+      List<String> row = result.get(0);
+      return new Summary(from, to, Integer.parseInt(row.get(0).trim()), Long.parseLong(row.get(1).trim()),
+                         Long.parseLong(row.get(2).trim()), Long.parseLong(row.get(3).trim()));
+   }
+
+   /**
+    * Sums the rollups of a hotel per day over a date range, or per month when
+    * the range is long, skipping periods without any activity.
+    *
+    * @throws java.sql.SQLException when the query failed
+    */
+   public static List<Summary> series(Hotel esql, int hotelID, LocalDate from, LocalDate to) throws SQLException {
+      boolean daily = ChronoUnit.DAYS.between(from, to) < MAX_DAILY_ROWS;
+      String period = daily ? "day" : "date_trunc('month', day)::date";
+      List<List<String>> result = esql.executeQueryAndReturnResult(String.format(
+         "SELECT %4$s, SUM(roomNights), SUM(revenue), SUM(repairRoomDays), "
+         + "(SELECT COUNT(*) FROM Rooms WHERE hotelID = %1$d) "
+         + "FROM HotelDailyRollup WHERE hotelID = %1$d AND day BETWEEN DATE '%2$s' AND DATE '%3$s' "
+         + "GROUP BY %4$s ORDER BY 1",
+         hotelID, from, to, period));
+      List<Summary> series = new ArrayList<Summary>();
+      for (List<String> row : result) {
+         // bookingDate-like values come back from the server as yyyy-mm-dd
+         LocalDate start = LocalDate.parse(row.get(0).trim());
+         LocalDate end = daily ? start : start.plusMonths(1).minusDays(1);
+         if (start.isBefore(from)) {
+            start = from;
+         }
+         if (end.isAfter(to)) {
+            end = to;
+         }
+         series.add(new Summary(start, end, Integer.parseInt(row.get(4).trim()), Long.parseLong(row.get(1).trim()),
+                                Long.parseLong(row.get(2).trim()), Long.parseLong(row.get(3).trim())));
+      }
+      return series;
+   }
+
+   /**
+    * @return the summary and series of a hotel as a table
+    */
+   public static String render(Summary total, List<Summary> series) {
+      StringBuilder out = new StringBuilder();
+      out.append(String.format("%-25s %10s %10s %12s %12s%n", "Period", "Nights", "Occupancy", "Revenue", "Repair days"));
+      for (Summary s : series) {
+         appendRow(out, s.from.equals(s.to) ? s.from.toString() : s.from + " - " + s.to, s);
+      }
+      appendRow(out, "Total (" + total.rooms + " rooms)", total);
+      return out.toString();
+   }
+
+   private static void appendRow(StringBuilder out, String period, Summary s) {
+      out.append(String.format("%-25s %10d %9.1f%% %12d %12d%n", period, s.roomNights, s.getOccupancyPercent(),
+                               s.revenue, s.repairRoomDays));
+   }
+
+}//end HotelRollups
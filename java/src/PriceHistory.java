@@ -0,0 +1,331 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.time.LocalDate;
+
+/**
+ * This class holds the price history of every room (RoomPriceHistory, see
+ * create_price_history.sql) in memory and answers "what did this room cost
+ * at time t" with two binary searches: one for the room, one for the
+ * version.
+ *
+ * The history is kept in flat sorted arrays, a few bytes per room and per
+ * version, so millions of rooms fit in a small heap. Rooms changed after the
+ * load are reloaded on the next refresh() into a small map consulted first.
+ * It follows the change feed for that; updateRoomInfo also marks the rooms it
+ * changes, so its own changes show up without waiting for the feed.
+ *
+ * Times are milliseconds since 1970-01-01 of the server's timestamps, with
+ * BEGINNING for -infinity.
+ *
+ */
+public class PriceHistory implements ChangeFeed.Listener {
+
+   public static final long BEGINNING = Long.MIN_VALUE;
+
+   private static final int FETCH_ROWS = 10000;
+
+   // converts a timestamp column or expression to the millisecond times used here
+   static String millis(String timestamp) {
+      return String.format("CASE WHEN %1$s = '-infinity' THEN NULL ELSE (extract(epoch FROM %1$s) * 1000)::bigint END",
+                           timestamp);
+   }
+
+   /**
+    * The versions of one room, oldest first.
+    */
+   private static class Versions {
+      final long[] times;
+      final int[] prices;
+
+      Versions(long[] times, int[] prices) {
+         this.times = times;
+         this.prices = prices;
+      }
+   }
+
+   /**
+    * Everything loaded by one full load. The versions of rooms[i] are
+    * times[first[i]] .. times[first[i + 1] - 1].
+    */
+   private static class Snapshot {
+      final long[] rooms;
+      final int[] first;
+      final long[] times;
+      final int[] prices;
+
+      Snapshot(long[] rooms, int[] first, long[] times, int[] prices) {
+         this.rooms = rooms;
+         this.first = first;
+         this.times = times;
+         this.prices = prices;
+      }
+   }
+
+   /**
+    * Receives one booked room-night priced as of when it was booked.
+    */
+   public interface RoomNightSink {
+      /**
+       * @param price the price at booking time, or -1 when it is not known
+       */
+      void accept(int hotelID, int roomNumber, String bookingDate, int price);
+   }
+
+   private volatile Snapshot snapshot = new Snapshot(new long[0], new int[] { 0 }, new long[0], new int[0]);
+   // rooms reloaded since the snapshot; an empty Versions means the room is gone
+   private final Map<Long, Versions> reloaded = new ConcurrentHashMap<Long, Versions>();
+   // rooms changed and not reloaded yet
+   private final Set<Long> stale = ConcurrentHashMap.newKeySet();
+   private volatile boolean resyncNeeded = true;
+
+   private static long key(int hotelID, int roomNumber) {
+      return ((long) hotelID << 32) | (roomNumber & 0xffffffffL);
+   }
+
+   /**
+    * Brings the history up to date: loads it all the first time and after
+    * the change feed lost track, otherwise only reloads the rooms changed
+    * since.
+    *
+    * @throws java.sql.SQLException when failed to read the history
+    */
+   public synchronized void refresh(Hotel esql) throws SQLException {
+      if (resyncNeeded) {
+         resyncNeeded = false;
+         stale.clear();
+         try {
+            load(esql);
+         }catch (SQLException e){
+            resyncNeeded = true;
+            throw e;
+         }
+         reloaded.clear();
+         return;
+      }
+      if (stale.isEmpty()) {
+         return;
+      }
+      Long[] keys = stale.toArray(new Long[0]);
+      StringBuilder rooms = new StringBuilder();
+      for (Long k : keys) {
+         stale.remove(k);
+         rooms.append(rooms.length() == 0 ? "" : ", ")
+              .append('(').append((int) (k >> 32)).append(", ").append((int) (long) k).append(')');
+      }
+      List<List<String>> result;
+      try {
+         // from the primary, like load(): a lagging replica would miss the new versions
+         result = esql.executeQueryOnPrimaryAndReturnResult(String.format(
+            "SELECT hotelID, roomNumber, %s, price FROM RoomPriceHistory WHERE (hotelID, roomNumber) IN (%s) "
+            + "ORDER BY hotelID, roomNumber, validFrom", millis("validFrom"), rooms));
+      }catch (SQLException e){
+         stale.addAll(Arrays.asList(keys));
+         throw e;
+      }
+      Map<Long, Versions> loaded = new TreeMap<Long, Versions>();
+      int start = 0;
+      for (int i = 1; i <= result.size(); i++) {
+         if (i == result.size() || !sameRoom(result.get(i), result.get(start))) {
+            int n = i - start;
+            long[] times = new long[n];
+            int[] prices = new int[n];
+            for (int j = 0; j < n; j++) {
+               List<String> row = result.get(start + j);
+               times[j] = row.get(2) == null ? BEGINNING : Long.parseLong(row.get(2).trim());
+               prices[j] = Integer.parseInt(row.get(3).trim());
+            }
+            List<String> row = result.get(start);
+            loaded.put(key(Integer.parseInt(row.get(0).trim()), Integer.parseInt(row.get(1).trim())), new Versions(times, prices));
+            start = i;
+         }
+      }
+      for (Long k : keys) {
+         Versions versions = loaded.get(k);
+         reloaded.put(k, versions != null ? versions : new Versions(new long[0], new int[0]));
+      }
+   }
+
+   private static boolean sameRoom(List<String> a, List<String> b) {
+      return a.get(0).equals(b.get(0)) && a.get(1).equals(b.get(1));
+   }
+
+   private void load(Hotel esql) throws SQLException {
+      int rooms = 0;
+      int versions = 0;
+      long[] roomKeys = new long[1024];
+      int[] first = new int[1025];
+      long[] times = new long[4096];
+      int[] prices = new int[4096];
+
+      Connection connection = esql.openConnection();
+      try {
+         connection.setAutoCommit(false);
+         Statement stmt = connection.createStatement();
+         try {
+            stmt.executeUpdate(String.format(
+               "DECLARE history_cursor NO SCROLL CURSOR FOR SELECT hotelID, roomNumber, %s, price FROM RoomPriceHistory "
+               + "ORDER BY hotelID, roomNumber, validFrom", millis("validFrom")));
+            boolean more = true;
+            while (more) {
+               // under the operation's budget, like every other statement
+               ResultSet rs = esql.executeQuery(stmt, "FETCH FORWARD " + FETCH_ROWS + " FROM history_cursor");
+               int fetched = 0;
+               while (rs.next()) {
+                  fetched++;
+                  long k = key(rs.getInt(1), rs.getInt(2));
+                  if (rooms == 0 || roomKeys[rooms - 1] != k) {
+                     if (rooms == roomKeys.length) {
+                        roomKeys = Arrays.copyOf(roomKeys, rooms * 2);
+                        first = Arrays.copyOf(first, rooms * 2 + 1);
+                     }
+                     roomKeys[rooms] = k;
+                     first[rooms] = versions;
+                     rooms++;
+                  }
+                  if (versions == times.length) {
+                     times = Arrays.copyOf(times, versions * 2);
+                     prices = Arrays.copyOf(prices, versions * 2);
+                  }
+                  long time = rs.getLong(3);
+                  times[versions] = rs.wasNull() ? BEGINNING : time;
+                  prices[versions] = rs.getInt(4);
+                  versions++;
+               }
+               rs.close();
+               more = fetched == FETCH_ROWS;
+            }
+            stmt.executeUpdate("CLOSE history_cursor");
+         } finally {
+            stmt.close();
+            connection.commit();
+         }
+      } finally {
+         connection.close();
+      }
+      first[rooms] = versions;
+      snapshot = new Snapshot(Arrays.copyOf(roomKeys, rooms), Arrays.copyOf(first, rooms + 1),
+                              Arrays.copyOf(times, versions), Arrays.copyOf(prices, versions));
+   }
+
+   /**
+    * @param time milliseconds since 1970-01-01, as returned by millis()
+    * @return the price of a room at a time, or -1 when it is not known
+    */
+   public int priceAt(int hotelID, int roomNumber, long time) {
+      long k = key(hotelID, roomNumber);
+      Versions versions = reloaded.get(k);
+      if (versions != null) {
+         int i = floor(versions.times, 0, versions.times.length, time);
+         return i < 0 ? -1 : versions.prices[i];
+      }
+      Snapshot s = snapshot;
+      int room = Arrays.binarySearch(s.rooms, k);
+      if (room < 0) {
+         return -1;
+      }
+      int i = floor(s.times, s.first[room], s.first[room + 1], time);
+      return i < 0 ? -1 : s.prices[i];
+   }
+
+   /**
+    * @return the current price of a room, or -1 when it is not known
+    */
+   public int currentPrice(int hotelID, int roomNumber) {
+      return priceAt(hotelID, roomNumber, Long.MAX_VALUE);
+   }
+
+   // the last index in [from, to) with a[index] <= time, or -1
+   private static int floor(long[] a, int from, int to, long time) {
+      int lo = from;
+      int hi = to - 1;
+      int found = -1;
+      while (lo <= hi) {
+         int mid = (lo + hi) >>> 1;
+         if (a[mid] <= time) {
+            found = mid;
+            lo = mid + 1;
+         } else {
+            hi = mid - 1;
+         }
+      }
+      return found;
+   }
+
+   /**
+    * Prices the booked room-nights of the hotels a manager manages (or of
+    * one of them) in a date range, in one pass over RoomBookings on a cursor.
+    * Bookings made before bookedOn was recorded are priced as of the night
+    * booked.
+    *
+    * @param hotelID the hotel, or null for all the manager's hotels
+    * @return the number of room-nights passed to the sink
+    * @throws java.sql.SQLException when the bookings cannot be read
+    */
+   public long priceBookings(Hotel esql, int managerID, Integer hotelID, LocalDate from, LocalDate to,
+                             RoomNightSink sink) throws SQLException {
+      String query = String.format(
+         "SELECT hotelID, roomNumber, bookingDate, %s FROM RoomBookings "
+         + "WHERE hotelID IN (SELECT H.hotelID FROM Hotel H WHERE H.managerUserID = %d)%s "
+         + "AND bookingDate >= DATE '%s' AND bookingDate < DATE '%s'",
+         millis("COALESCE(bookedOn, bookingDate::timestamp)"), managerID,
+         hotelID == null ? "" : " AND hotelID = " + hotelID, from, to.plusDays(1));
+      long nights = 0;
+      Connection connection = esql.openConnection();
+      try {
+         connection.setAutoCommit(false);
+         Statement stmt = connection.createStatement();
+         try {
+            stmt.executeUpdate("DECLARE booking_cursor NO SCROLL CURSOR FOR " + query);
+            boolean more = true;
+            while (more) {
+               ResultSet rs = esql.executeQuery(stmt, "FETCH FORWARD " + FETCH_ROWS + " FROM booking_cursor");
+               int fetched = 0;
+               while (rs.next()) {
+                  fetched++;
+                  int hotel = rs.getInt(1);
+                  int room = rs.getInt(2);
+                  sink.accept(hotel, room, rs.getString(3), priceAt(hotel, room, rs.getLong(4)));
+               }
+               rs.close();
+               nights += fetched;
+               more = fetched == FETCH_ROWS;
+            }
+            stmt.executeUpdate("CLOSE booking_cursor");
+         } finally {
+            stmt.close();
+            connection.commit();
+         }
+      } finally {
+         connection.close();
+      }
+      return nights;
+   }
+
+   /**
+    * Makes the next refresh() reload a room.
+    */
+   public void markStale(int hotelID, int roomNumber) {
+      stale.add(key(hotelID, roomNumber));
+   }
+
+   public void apply(List<ChangeFeed.ChangeEvent> events) {
+      for (ChangeFeed.ChangeEvent event : events) {
+         if (event.table.equals("rooms") && event.roomNumber != null) {
+            markStale(event.hotelID, event.roomNumber);
+         }
+      }
+   }
+
+   public void resync() {
+      resyncNeeded = true;
+   }
+
+}//end PriceHistory
@@ -0,0 +1,423 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.BatchUpdateException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * This class puts every statement Hotel runs under the budget of the
+ * operation it belongs to. The budget covers the whole operation, from
+ * beginOperation on, and a statement still running when what is left of it
+ * is spent is cancelled on the server. Statements that go over budget get
+ * their plan written to SLOW_QUERY_LOG: the actual one when auto_explain
+ * could be loaded into the session and the statement ran to the end,
+ * otherwise the estimated one (plain EXPLAIN, so the slow statement is not
+ * run again) taken on a background thread and a connection of its own.
+ *
+ * Operations are also grouped into classes with a limit on how many may run
+ * at once across all clients, so manager reports cannot take all the
+ * connections customers need to book rooms. A class has as many slots as
+ * its limit, each a session advisory lock on the primary, and an operation
+ * holds one from admit to release. The server drops the lock of a client
+ * that goes away.
+ *
+ */
+public class QueryGovernor {
+
+   public static final String SLOW_QUERY_LOG = "slow_queries.log";
+
+   // budget of statements run outside of any operation
+   private static final long DEFAULT_BUDGET_MILLIS = 5000;
+   // how long an operation waits for a slot of its class
+   private static final long ADMISSION_WAIT_MILLIS = 2000;
+   private static final long ADMISSION_RETRY_MILLIS = 50;
+   // first key of the slot locks, pg_advisory_lock(SLOT_LOCKS + class, slot)
+   private static final int SLOT_LOCKS = 0x484f0000;
+   // auto_explain threshold of a session where it could not be loaded
+   private static final long NO_AUTO_EXPLAIN = -1;
+
+   /**
+    * Groups of operations sharing a concurrency limit.
+    */
+   public enum OperationClass {
+      CUSTOMER(64), MANAGER(16), REPORT(4);
+
+      final int limit;
+
+      OperationClass(int limit) {
+         this.limit = limit;
+      }
+   }
+
+   /**
+    * The operations of the user interface, whether they write, their
+    * latency budget and their class.
+    */
+   public enum Operation {
+      CREATE_USER(true, 2000, OperationClass.CUSTOMER),
+      LOG_IN(false, 2000, OperationClass.CUSTOMER),
+      VIEW_HOTELS(false, 2000, OperationClass.CUSTOMER),
+      VIEW_ROOMS(false, 2000, OperationClass.CUSTOMER),
+      BOOK_ROOM(true, 2000, OperationClass.CUSTOMER),
+      VIEW_RECENT_BOOKINGS(false, 2000, OperationClass.CUSTOMER),
+      AVAILABILITY_CALENDAR(false, 5000, OperationClass.CUSTOMER),
+      UPDATE_ROOM(true, 2000, OperationClass.MANAGER),
+      PLACE_REPAIR_REQUEST(true, 2000, OperationClass.MANAGER),
+      VIEW_RECENT_UPDATES(false, 5000, OperationClass.REPORT),
+      VIEW_BOOKING_HISTORY(false, 10000, OperationClass.REPORT),
+      VIEW_REGULAR_CUSTOMERS(false, 10000, OperationClass.REPORT),
+      VIEW_REPAIR_HISTORY(false, 5000, OperationClass.REPORT),
+      HOTEL_DASHBOARD(true, 2000, OperationClass.MANAGER),
+      MAINTAIN_ROLLUPS(true, 120000, OperationClass.REPORT),
+      VIEW_PRICE_HISTORY(false, 2000, OperationClass.MANAGER),
+      REVENUE_AT_BOOKING_TIME(false, 60000, OperationClass.REPORT),
+      BENCHMARK(false, 60000, OperationClass.REPORT),
+      EXPORT(false, 600000, OperationClass.REPORT);
+
+      public final boolean write;
+      public final long budgetMillis;
+      public final OperationClass operationClass;
+
+      Operation(boolean write, long budgetMillis, OperationClass operationClass) {
+         this.write = write;
+         this.budgetMillis = budgetMillis;
+         this.operationClass = operationClass;
+      }
+   }
+
+   /**
+    * A statement being governed.
+    */
+   public static class Ticket {
+      final Operation operation;
+      // more than one for a batch
+      final List<String> statements;
+      final long budgetMillis;
+      final Connection connection;
+      // where the statement ran, for explaining it from another thread
+      final String url;
+      final long startNanos = System.nanoTime();
+      // the statement of a batch that failed, -1 if not known
+      int running = -1;
+      // both guarded by the ticket, so no cancel is sent once finish() ran
+      volatile boolean cancelled = false;
+      boolean finished = false;
+      ScheduledFuture<?> deadline;
+
+      Ticket(Operation operation, List<String> statements, long budgetMillis, Connection connection, String url) {
+         this.operation = operation;
+         this.statements = statements;
+         this.budgetMillis = budgetMillis;
+         this.connection = connection;
+         this.url = url;
+      }
+   }
+
+   private final Hotel esql;
+   private final ScheduledExecutorService timer;
+   private final ThreadPoolExecutor explainer;
+   // auto_explain.log_min_duration set in each session, NO_AUTO_EXPLAIN where it is not loaded
+   private final Map<Connection, Long> autoExplain =
+      Collections.synchronizedMap(new WeakHashMap<Connection, Long>());
+
+   public QueryGovernor(Hotel esql) {
+      this.esql = esql;
+      ThreadFactory daemons = new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "query-governor");
+            t.setDaemon(true);
+            return t;
+         }
+      };
+      this.timer = Executors.newSingleThreadScheduledExecutor(daemons);
+      // one capture at a time, and drop captures rather than queue up behind a slow database
+      this.explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<Runnable>(16), daemons);
+   }
+
+   /**
+    * Waits for a slot of the operation's class, trying the slots from a
+    * random one on so clients do not all queue on the first.
+    *
+    * @param connection the session to hold the slot in, on the primary
+    * @return the slot, to hand back to release()
+    * @throws java.sql.SQLException when no slot frees up in time
+    */
+   public int admit(Operation operation, Connection connection) throws SQLException {
+      int limit = operation.operationClass.limit;
+      int classKey = SLOT_LOCKS + operation.operationClass.ordinal();
+      long giveUp = System.currentTimeMillis() + ADMISSION_WAIT_MILLIS;
+      Statement stmt = connection.createStatement();
+      try {
+         while (true) {
+            int first = ThreadLocalRandom.current().nextInt(limit);
+            for (int i = 0; i < limit; i++) {
+               int slot = (first + i) % limit;
+               ResultSet rs = stmt.executeQuery(String.format("SELECT pg_try_advisory_lock(%d, %d)", classKey, slot));
+               if (rs.next() && rs.getBoolean(1)) {
+                  return slot;
+               }
+            }
+            if (System.currentTimeMillis() >= giveUp) {
+               throw new SQLException("Too many " + operation.operationClass.name().toLowerCase()
+                                      + " operations running, please try again.");
+            }
+            Thread.sleep(ADMISSION_RETRY_MILLIS);
+         }
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting to run " + operation);
+      } finally {
+         stmt.close();
+      }
+   }
+
+   /**
+    * Frees the slot taken by admit().
+    */
+   public void release(Operation operation, int slot, Connection connection) {
+      try {
+         Statement stmt = connection.createStatement();
+         try {
+            stmt.executeQuery(String.format("SELECT pg_advisory_unlock(%d, %d)",
+                                            SLOT_LOCKS + operation.operationClass.ordinal(), slot)).close();
+         } finally {
+            stmt.close();
+         }
+      }catch (SQLException e){
+         // a broken session has lost its locks anyway
+      }
+   }
+
+   /**
+    * @return the System.nanoTime() by which an operation starting now must
+    *         be done, for start()
+    */
+   public long deadline(Operation operation) {
+      return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(operation.budgetMillis);
+   }
+
+   /**
+    * Arms the deadline of a statement about to run: what is left of the
+    * operation's budget, or the default budget outside of an operation.
+    *
+    * @param operation the running operation, or null
+    * @param deadline the operation's deadline(), ignored without one
+    * @param statements what stmt is about to run, more than one for a batch
+    * @throws java.sql.SQLException when the operation's budget is spent
+    */
+   public Ticket start(final Statement stmt, Operation operation, long deadline, List<String> statements) throws SQLException {
+      Connection connection = stmt.getConnection();
+      long budget = DEFAULT_BUDGET_MILLIS;
+      if (operation != null) {
+         budget = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+         if (budget <= 0) {
+            throw overBudget(operation, operation.budgetMillis, null);
+         }
+         loadAutoExplain(connection, operation);
+      }
+      final Ticket ticket = new Ticket(operation, statements, budget, connection, connection.getMetaData().getURL());
+      // only the plans auto_explain sends for this statement
+      connection.clearWarnings();
+      try {
+         // honoured by drivers that implement it; the timer below covers the others
+         stmt.setQueryTimeout((int) Math.max(1, (budget + 999) / 1000));
+      }catch (SQLException e){
+         // ignored.
+      }
+      ticket.deadline = timer.schedule(new Runnable() {
+         public void run() {
+            // the driver cancels whatever the connection runs, so never after finish()
+            synchronized (ticket) {
+               if (ticket.finished) {
+                  return;
+               }
+               ticket.cancelled = true;
+               try {
+                  stmt.cancel();
+               }catch (SQLException e){
+                  // ignored.
+               }
+            }
+         }
+      }, budget, TimeUnit.MILLISECONDS);
+      return ticket;
+   }
+
+   /**
+    * Has the session log the actual plan of every statement that runs
+    * longer than the operation's budget, and send it back as a warning.
+    * Only outside of a transaction, which a failing LOAD would abort.
+    */
+   private void loadAutoExplain(Connection connection, Operation operation) throws SQLException {
+      Long threshold = autoExplain.get(connection);
+      if ((threshold != null && (threshold == NO_AUTO_EXPLAIN || threshold == operation.budgetMillis))
+          || !connection.getAutoCommit()) {
+         return;
+      }
+      Statement stmt = connection.createStatement();
+      try {
+         if (threshold == null) {
+            stmt.executeUpdate("LOAD 'auto_explain'");
+            stmt.executeUpdate("SET auto_explain.log_analyze = on");
+            stmt.executeUpdate("SET auto_explain.log_buffers = on");
+            // actual rows and buffers without timing every node of every statement
+            stmt.executeUpdate("SET auto_explain.log_timing = off");
+            stmt.executeUpdate("SET client_min_messages = log");
+         }
+         stmt.executeUpdate("SET auto_explain.log_min_duration = " + operation.budgetMillis);
+         autoExplain.put(connection, operation.budgetMillis);
+      }catch (SQLException e){
+         // not installed, or not allowed for this user
+         autoExplain.put(connection, NO_AUTO_EXPLAIN);
+      } finally {
+         stmt.close();
+      }
+   }
+
+   /**
+    * Disarms the deadline and captures the plan of a statement that went
+    * over budget.
+    */
+   public void finish(Ticket ticket) {
+      synchronized (ticket) {
+         ticket.finished = true;
+      }
+      ticket.deadline.cancel(false);
+      long elapsed = (System.nanoTime() - ticket.startNanos) / 1000000;
+      if (ticket.cancelled || elapsed > ticket.budgetMillis) {
+         capturePlan(ticket, elapsed, loggedPlan(ticket.connection));
+      }
+   }
+
+   /**
+    * Replaces the driver's error of a cancelled statement with one that
+    * says which budget was exceeded.
+    */
+   public SQLException failed(Ticket ticket, SQLException e) {
+      if (e instanceof BatchUpdateException) {
+         int[] done = ((BatchUpdateException) e).getUpdateCounts();
+         if (done != null && done.length < ticket.statements.size()) {
+            ticket.running = done.length;
+         }
+      }
+      if (!ticket.cancelled) {
+         return e;
+      }
+      return overBudget(ticket.operation, ticket.operation == null ? ticket.budgetMillis
+                                                                   : ticket.operation.budgetMillis, e);
+   }
+
+   private static SQLException overBudget(Operation operation, long budgetMillis, SQLException cause) {
+      SQLException timeout = new SQLException((operation == null ? "Query" : operation.toString())
+                                              + " exceeded its " + budgetMillis + " ms budget"
+                                              + (cause == null ? "." : " and was cancelled."), "57014");
+      if (cause != null) {
+         timeout.initCause(cause);
+      }
+      return timeout;
+   }
+
+   // the plans auto_explain sent back since start(), or null
+   private static String loggedPlan(Connection connection) {
+      StringBuilder plan = new StringBuilder();
+      try {
+         for (SQLWarning w = connection.getWarnings(); w != null; w = w.getNextWarning()) {
+            if (w.getMessage() != null && w.getMessage().contains("Query Text:")) {
+               plan.append(w.getMessage().trim()).append('\n');
+            }
+         }
+         connection.clearWarnings();
+      }catch (SQLException e){
+         return null;
+      }
+      return plan.length() == 0 ? null : plan.toString();
+   }
+
+   private void capturePlan(final Ticket ticket, final long elapsed, final String plan) {
+      try {
+         explainer.execute(new Runnable() {
+            public void run() {
+               writePlan(ticket, elapsed, plan != null ? plan : explain(ticket));
+            }
+         });
+      }catch (RejectedExecutionException e){
+         writePlan(ticket, elapsed, "(plan not captured, too many slow queries)");
+      }
+   }
+
+   private String explain(Ticket ticket) {
+      String sql;
+      if (ticket.statements.size() == 1) {
+         sql = ticket.statements.get(0).trim();
+      } else if (ticket.running >= 0) {
+         sql = ticket.statements.get(ticket.running).trim();
+      } else {
+         return "(plan not captured, not known which statement of the batch was slow)\n";
+      }
+      if (sql.endsWith(";")) {
+         sql = sql.substring(0, sql.length() - 1);
+      }
+      // not ANALYZE: that would run the slow statement again while the server is struggling
+      String explain = "EXPLAIN " + sql;
+      StringBuilder plan = new StringBuilder();
+      try {
+         Connection connection = esql.openConnection(ticket.url);
+         try {
+            Statement stmt = connection.createStatement();
+            stmt.executeUpdate("SET statement_timeout = " + ticket.budgetMillis);
+            ResultSet rs = stmt.executeQuery(explain);
+            while (rs.next()) {
+               plan.append(rs.getString(1)).append('\n');
+            }
+            stmt.close();
+         } finally {
+            connection.close();
+         }
+      }catch (SQLException e){
+         plan.append("(plan not captured: ").append(e.getMessage()).append(")\n");
+      }
+      return plan.toString();
+   }
+
+   private synchronized void writePlan(Ticket ticket, long elapsed, String plan) {
+      try {
+         PrintWriter out = new PrintWriter(new FileWriter(SLOW_QUERY_LOG, true));
+         try {
+            out.printf("%s %s took %d ms (budget %d ms)%s%n", LocalDateTime.now(),
+                       ticket.operation == null ? "Query" : ticket.operation, elapsed, ticket.budgetMillis,
+                       ticket.cancelled ? ", cancelled" : "");
+            out.println(String.join(";\n", ticket.statements).trim());
+            out.println(plan);
+         } finally {
+            out.close();
+         }
+      }catch (IOException e){
+         System.err.println("Unable to write " + SLOW_QUERY_LOG + ": " + e.getMessage());
+      }
+   }
+
+   public void close() {
+      timer.shutdownNow();
+      explainer.shutdown();
+   }
+
+}//end QueryGovernor
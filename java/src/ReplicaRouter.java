@@ -0,0 +1,276 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class spreads read only queries over a set of streaming replicas of
+ * the primary database. A replica is picked by the least number of queries
+ * in flight, ties broken round-robin. Replicas that fail a health check are
+ * skipped until they answer again, and the primary is used whenever no
+ * replica is usable.
+ *
+ * Read-your-writes: after a write the primary's WAL position is remembered,
+ * and a replica is only used once it has replayed up to that position.
+ *
+ * The health check runs on a connection of its own, so it never touches a
+ * connection a query is using. A replica only leaves rotation when its
+ * connection fails; an error in the query itself is the caller's.
+ *
+ */
+public class ReplicaRouter {
+
+   private static final int HEALTH_CHECK_SECONDS = 5;
+
+   // messages of the driver's connection errors, which carry no SQLState
+   private static final String[] CONNECTION_ERRORS = {
+      "Connection is closed",
+      "The connection attempt failed",
+      "A connection error has occurred",
+      "Connection refused",
+      "The backend has broken the connection",
+      "An I/O error has occured",
+      "An I/O error occured",
+   };
+
+   /**
+    * One replica endpoint and its routing state.
+    */
+   static class Replica {
+      final String url;
+      final String user;
+      final String passwd;
+      // used by queries; only replaced by the health check while it is null
+      volatile Connection connection;
+      // used by the health check only
+      Connection healthConnection;
+      volatile boolean healthy;
+      final AtomicInteger inFlight = new AtomicInteger();
+      // last WAL position this replica was seen to have replayed
+      volatile String confirmedLsn;
+
+      Replica(String url, String user, String passwd) {
+         this.url = url;
+         this.user = user;
+         this.passwd = passwd;
+      }
+   }
+
+   private final Connection primary;
+   private final List<Replica> replicas = new ArrayList<Replica>();
+   private final AtomicInteger nextReplica = new AtomicInteger();
+   private final ScheduledExecutorService healthChecker;
+
+   // WAL position of the last write made through this session, null if none
+   private volatile String requiredLsn = null;
+
+   public ReplicaRouter(Connection primary) {
+      this.primary = primary;
+      this.healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "replica-health-check");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this.healthChecker.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            checkHealth();
+         }
+      }, HEALTH_CHECK_SECONDS, HEALTH_CHECK_SECONDS, TimeUnit.SECONDS);
+   }
+
+   /**
+    * Registers a replica. A replica that cannot be reached now is kept and
+    * retried by the health check.
+    */
+   public synchronized void addReplica(String url, String user, String passwd) {
+      Replica replica = new Replica(url, user, passwd);
+      checkHealth(replica);
+      replicas.add(replica);
+   }
+
+   public int getReplicaCount() {
+      return replicas.size();
+   }
+
+   /**
+    * Picks a replica for a read, or returns null when the read has to go to
+    * the primary. Callers must hand a non null result back to release().
+    */
+   public Replica acquire() {
+      List<Replica> snapshot;
+      synchronized (this) {
+         snapshot = new ArrayList<Replica>(replicas);
+      }
+      int n = snapshot.size();
+      if (n == 0) {
+         return null;
+      }
+      int offset = Math.abs(nextReplica.getAndIncrement() % n);
+      Replica best = null;
+      for (int i = 0; i < n; i++) {
+         Replica candidate = snapshot.get((offset + i) % n);
+         if (!candidate.healthy || candidate.connection == null || !caughtUp(candidate)) {
+            continue;
+         }
+         if (best == null || candidate.inFlight.get() < best.inFlight.get()) {
+            best = candidate;
+         }
+      }
+      if (best != null) {
+         best.inFlight.incrementAndGet();
+      }
+      return best;
+   }
+
+   public void release(Replica replica) {
+      replica.inFlight.decrementAndGet();
+   }
+
+   /**
+    * Takes a replica out of rotation after its connection failed, and closes
+    * that connection. The health check brings it back on a new one. Call it
+    * while the replica is still acquired.
+    */
+   public void markFailed(Replica replica) {
+      replica.healthy = false;
+      Connection connection = replica.connection;
+      replica.connection = null;
+      closeQuietly(connection);
+   }
+
+   /**
+    * @return whether an error means the connection is broken rather than
+    *         that the query failed: SQLState class 08, or for the errors the
+    *         driver raises without a state, its connection messages.
+    */
+   public static boolean isConnectionFailure(SQLException e) {
+      String state = e.getSQLState();
+      if (state != null) {
+         return state.startsWith("08");
+      }
+      String message = e.getMessage();
+      if (message == null) {
+         return false;
+      }
+      for (String known : CONNECTION_ERRORS) {
+         if (message.contains(known)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Records the primary's current WAL position after a write so that the
+    * following reads of this session do not see older data.
+    */
+   public void afterWrite() {
+      if (replicas.isEmpty()) {
+         return;
+      }
+      try {
+         requiredLsn = queryString(primary, "SELECT pg_current_wal_lsn()");
+      }catch (SQLException e){
+         // without a position we cannot tell which replica is current
+         requiredLsn = "FFFFFFFF/FFFFFFFF";
+      }
+   }
+
+   private boolean caughtUp(Replica replica) {
+      String lsn = requiredLsn;
+      if (lsn == null || lsn.equals(replica.confirmedLsn)) {
+         return true;
+      }
+      try {
+         String replayed = queryString(replica.connection,
+               String.format("SELECT pg_last_wal_replay_lsn() >= '%s'::pg_lsn", lsn));
+         if ("t".equals(replayed)) {
+            replica.confirmedLsn = lsn;
+            return true;
+         }
+      }catch (SQLException e){
+         if (isConnectionFailure(e)) {
+            replica.healthy = false;
+         }
+      }
+      return false;
+   }
+
+   private void checkHealth() {
+      List<Replica> snapshot;
+      synchronized (this) {
+         snapshot = new ArrayList<Replica>(replicas);
+      }
+      for (Replica replica : snapshot) {
+         checkHealth(replica);
+      }
+   }
+
+   /**
+    * Checks a replica on its health connection, reconnecting that when
+    * needed, and opens a new query connection when the old one was failed.
+    */
+   private void checkHealth(Replica replica) {
+      try {
+         if (replica.healthConnection == null) {
+            replica.healthConnection = open(replica);
+         }
+         queryString(replica.healthConnection, "SELECT 1");
+         if (replica.connection == null) {
+            replica.connection = open(replica);
+         }
+         replica.healthy = true;
+      }catch (SQLException e){
+         replica.healthy = false;
+         closeQuietly(replica.healthConnection);
+         replica.healthConnection = null;
+         System.err.println("Replica " + replica.url + " unavailable: " + e.getMessage());
+      }
+   }
+
+   private static Connection open(Replica replica) throws SQLException {
+      return DriverManager.getConnection(replica.url, replica.user, replica.passwd);
+   }
+
+   private static void closeQuietly(Connection connection) {
+      try {
+         if (connection != null) {
+            connection.close();
+         }
+      }catch (SQLException e){
+         // ignored.
+      }
+   }
+
+   private static String queryString(Connection connection, String query) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(query);
+         return rs.next() ? rs.getString(1) : null;
+      } finally {
+         stmt.close();
+      }
+   }
+
+   /**
+    * Stops the health check and closes the replica connections.
+    */
+   public synchronized void close() {
+      healthChecker.shutdownNow();
+      for (Replica replica : replicas) {
+         closeQuietly(replica.connection);
+         closeQuietly(replica.healthConnection);
+      }
+   }
+
+}//end ReplicaRouter
@@ -0,0 +1,118 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.SortedMap;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.time.LocalDate;
+
+/**
+ * This class caches the rooms (with prices) of each hotel and the rooms
+ * booked per hotel and day, so viewRooms does not have to query for them.
+ * Entries are loaded on first use and dropped when the change feed reports
+ * a change to them. They are loaded from the primary: a lagging replica
+ * could still return the rows from before the change.
+ *
+ */
+public class RoomCache implements ChangeFeed.Listener {
+
+   // hotelID -> roomNumber -> price
+   private final Map<Integer, SortedMap<Integer, Integer>> rooms = new ConcurrentHashMap<Integer, SortedMap<Integer, Integer>>();
+   // "hotelID|yyyy-mm-dd" -> booked room numbers
+   private final Map<String, Set<Integer>> booked = new ConcurrentHashMap<String, Set<Integer>>();
+   // bumped by every invalidation, so a load that raced with one is not kept
+   private final AtomicLong generation = new AtomicLong();
+
+   /**
+    * @return the rooms of a hotel and their prices, ordered by room number
+    * @throws java.sql.SQLException when failed to load them
+    */
+   public SortedMap<Integer, Integer> getRooms(Hotel esql, int hotelID) throws SQLException {
+      SortedMap<Integer, Integer> cached = rooms.get(hotelID);
+      if (cached != null) {
+         return cached;
+      }
+      long gen = generation.get();
+      SortedMap<Integer, Integer> loaded = new TreeMap<Integer, Integer>();
+      List<List<String>> result = esql.executeQueryOnPrimaryAndReturnResult(
+            String.format("SELECT roomNumber, price FROM Rooms WHERE hotelID = %d", hotelID));
+      for (List<String> row : result) {
+         loaded.put(Integer.parseInt(row.get(0).trim()), Integer.parseInt(row.get(1).trim()));
+      }
+      loaded = Collections.unmodifiableSortedMap(loaded);
+      if (generation.get() == gen) {
+         rooms.put(hotelID, loaded);
+      }
+      return loaded;
+   }
+
+   /**
+    * @return the room numbers of a hotel booked on a day
+    * @throws java.sql.SQLException when failed to load them
+    */
+   public Set<Integer> getBooked(Hotel esql, int hotelID, LocalDate day) throws SQLException {
+      String key = hotelID + "|" + day;
+      Set<Integer> cached = booked.get(key);
+      if (cached != null) {
+         return cached;
+      }
+      long gen = generation.get();
+      Set<Integer> loaded = new HashSet<Integer>();
+      List<List<String>> result = esql.executeQueryOnPrimaryAndReturnResult(
+            String.format("SELECT roomNumber FROM RoomBookings WHERE hotelID = %d AND bookingDate = DATE '%s'",
+                          hotelID, day.format(RoomCalendar.USER_DATE)));
+      for (List<String> row : result) {
+         loaded.add(Integer.parseInt(row.get(0).trim()));
+      }
+      loaded = Collections.unmodifiableSet(loaded);
+      if (generation.get() == gen) {
+         booked.put(key, loaded);
+      }
+      return loaded;
+   }
+
+   /**
+    * Drops the entries touched by a batch of changes. Many changes to the
+    * same hotel or day collapse into a single removal.
+    */
+   public void apply(List<ChangeFeed.ChangeEvent> events) {
+      Set<Integer> hotels = new HashSet<Integer>();
+      Set<String> days = new HashSet<String>();
+      for (ChangeFeed.ChangeEvent event : events) {
+         if (event.table.equals("roombookings")) {
+            // bookingDate comes back from the server as yyyy-mm-dd
+            days.add(event.hotelID + "|" + event.bookingDate);
+         } else {
+            hotels.add(event.hotelID);
+         }
+      }
+      generation.incrementAndGet();
+      for (Integer hotelID : hotels) {
+         rooms.remove(hotelID);
+      }
+      for (String key : days) {
+         booked.remove(key);
+      }
+   }
+
+   /**
+    * Drops everything cached of a hotel, e.g. when it moved to another shard.
+    */
+   public void dropHotel(int hotelID) {
+      generation.incrementAndGet();
+      rooms.remove(hotelID);
+      String prefix = hotelID + "|";
+      booked.keySet().removeIf(key -> key.startsWith(prefix));
+   }
+
+   public void resync() {
+      generation.incrementAndGet();
+      rooms.clear();
+      booked.clear();
+   }
+
+}//end RoomCache
@@ -0,0 +1,168 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * This class holds the availability of every room of one hotel over a range
+ * of days. Each room keeps a BitSet where bit d is set when the room is
+ * booked on day d of the range, so a 30 day calendar of a 200 room hotel is
+ * a few hundred longs instead of 6000 result rows.
+ *
+ */
+public class RoomCalendar {
+
+   static final DateTimeFormatter USER_DATE = DateTimeFormatter.ofPattern("M/d/yyyy");
+
+   private final int hotelID;
+   private final LocalDate start;
+   private final int numDays;
+   private final List<Integer> roomNumbers = new ArrayList<Integer>();
+   private final List<BitSet> booked = new ArrayList<BitSet>();
+
+   private RoomCalendar(int hotelID, LocalDate start, int numDays) {
+      this.hotelID = hotelID;
+      this.start = start;
+      this.numDays = numDays;
+   }
+
+   /**
+    * Loads the calendar of a hotel with a single query. Every room of the
+    * hotel comes back at least once (LEFT JOIN), followed by one row per
+    * booked night inside the range as a day offset from the start date.
+    *
+    * @param esql the database handle
+    * @param hotelID the hotel to build the calendar for
+    * @param start first day of the range
+    * @param end last day of the range (inclusive)
+    * @return the calendar of the hotel
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static RoomCalendar load(Hotel esql, int hotelID, LocalDate start, LocalDate end) throws SQLException {
+      int numDays = (int) ChronoUnit.DAYS.between(start, end) + 1;
+      if (numDays <= 0) {
+         throw new IllegalArgumentException("The ending date must not be before the beginning date.");
+      }
+      RoomCalendar calendar = new RoomCalendar(hotelID, start, numDays);
+
+      String query = String.format("SELECT R.roomNumber, RB.bookingDate - DATE '%s'\n" +
+                                   "FROM Rooms R\n" +
+                                   "LEFT JOIN RoomBookings RB ON RB.hotelID = R.hotelID AND RB.roomNumber = R.roomNumber\n" +
+                                   "   AND RB.bookingDate >= DATE '%s' AND RB.bookingDate <= DATE '%s'\n" +
+                                   "WHERE R.hotelID = %d\n" +
+                                   "ORDER BY R.roomNumber;",
+                                   start.format(USER_DATE), start.format(USER_DATE), end.format(USER_DATE), hotelID);
+      List<List<String>> rows = esql.executeQueryAndReturnResult(query);
+
+      int lastRoom = Integer.MIN_VALUE;
+      BitSet current = null;
+      for (List<String> row : rows) {
+         int roomNumber = Integer.parseInt(row.get(0).trim());
+         if (current == null || roomNumber != lastRoom) {
+            current = new BitSet(numDays);
+            calendar.roomNumbers.add(roomNumber);
+            calendar.booked.add(current);
+            lastRoom = roomNumber;
+         }
+         if (row.get(1) != null) {
+            current.set(Integer.parseInt(row.get(1).trim()));
+         }
+      }
+      return calendar;
+   }
+
+   public int getHotelID() {
+      return hotelID;
+   }
+
+   public int getNumDays() {
+      return numDays;
+   }
+
+   public int getNumRooms() {
+      return roomNumbers.size();
+   }
+
+   public boolean isAvailable(int roomIndex, int day) {
+      return !booked.get(roomIndex).get(day);
+   }
+
+   /**
+    * Method to compute the percentage of rooms booked on a day of the range.
+    *
+    * @param day offset from the first day of the range
+    * @return occupancy between 0 and 100
+    */
+   public double occupancyPercent(int day) {
+      if (roomNumbers.isEmpty()) {
+         return 0.0;
+      }
+      int count = 0;
+      for (BitSet bits : booked) {
+         if (bits.get(day)) {
+            count++;
+         }
+      }
+      return 100.0 * count / roomNumbers.size();
+   }
+
+   /**
+    * Renders the calendar as one line per room ('.' free, 'X' booked)
+    * followed by the occupancy of each day. The whole text is built in
+    * memory and printed once.
+    */
+   public String render() {
+      StringBuilder sb = new StringBuilder((numDays + 16) * (roomNumbers.size() + numDays + 4));
+      sb.append("Hotel ").append(hotelID).append(", ").append(start.format(USER_DATE))
+        .append(" to ").append(start.plusDays(numDays - 1).format(USER_DATE)).append('\n');
+      for (int r = 0; r < roomNumbers.size(); r++) {
+         sb.append(String.format("Room %5d  ", roomNumbers.get(r)));
+         BitSet bits = booked.get(r);
+         for (int d = 0; d < numDays; d++) {
+            sb.append(bits.get(d) ? 'X' : '.');
+         }
+         sb.append('\n');
+      }
+      sb.append("\nOccupancy per day\n");
+      for (int d = 0; d < numDays; d++) {
+         sb.append(String.format("%-12s %6.2f%%\n", start.plusDays(d).format(USER_DATE), occupancyPercent(d)));
+      }
+      return sb.toString();
+   }
+
+   /**
+    * Runs the calendar query against the per date lookup used by viewRooms
+    * (one query per day) for the same hotel and range, and reports the
+    * elapsed time of both.
+    *
+    * @return a short report of the two timings
+    * @throws java.sql.SQLException when failed to execute a query
+    */
+   public static String benchmark(Hotel esql, int hotelID, LocalDate start, LocalDate end, int iterations) throws SQLException {
+      long looped = 0;
+      long calendar = 0;
+      for (int i = 0; i < iterations; i++) {
+         long t0 = System.nanoTime();
+         for (LocalDate day = start; !day.isAfter(end); day = day.plusDays(1)) {
+            String query = String.format("SELECT roomNumber, price\n" +
+                                         "FROM Rooms R\n" +
+                                         "WHERE R.hotelID = '%d' AND roomNumber NOT IN(\n" +
+                                         "SELECT roomNumber\n" +
+                                         "FROM RoomBookings\n" +
+                                         "WHERE '%d' = hotelID AND bookingDate = '%s');", hotelID, hotelID, day.format(USER_DATE));
+            esql.executeQueryAndReturnResult(query);
+         }
+         long t1 = System.nanoTime();
+         load(esql, hotelID, start, end);
+         long t2 = System.nanoTime();
+         looped += t1 - t0;
+         calendar += t2 - t1;
+      }
+      return String.format("Per date lookups: %.2f ms, calendar query: %.2f ms (average of %d runs)",
+                           looped / 1e6 / iterations, calendar / 1e6 / iterations, iterations);
+   }
+
+}//end RoomCalendar
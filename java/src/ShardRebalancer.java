@@ -0,0 +1,457 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.TreeMap;
+
+/**
+ * This class moves hotels between the shards of ShardRouter. A hotel is
+ * moved with all its rows in one transaction per shard. Its rooms are locked
+ * on the source for the whole move, so bookings, repairs and updates of the
+ * hotel wait and then fail on the source. The clients send them to the
+ * target once they reload the directory.
+ *
+ * The target commits first and the directory is updated next. The source
+ * commits last. A move stopped after the target commit leaves a copy that
+ * the next move of the hotel overwrites. A move stopped after the directory
+ * update leaves a stray copy on the source, which status reports and clean
+ * deletes. A move holds the hotel's directory row locked (ShardRouter.lock)
+ * until the directory update commits, and clean deletes a copy only after
+ * locking that row and reading it again, so it never deletes the copy a
+ * move is creating or the one the directory points to.
+ *
+ * Users and MaintenanceCompany are created on shard 0 and copied to the
+ * others as they are written; sync copies the rows a shard missed.
+ *
+ * Usage: ShardRebalancer <dbname> <port> <user> <shard,...> status | plan |
+ * balance | clean | sync | move <hotelID>[,...] <shard>
+ *
+ */
+public class ShardRebalancer {
+
+   // rows inserted per statement on the target
+   private static final int INSERT_ROWS = 1000;
+   // balance stops once every shard is within this fraction of the average load
+   private static final double TOLERANCE = 0.1;
+
+   // the tables holding rows of a hotel, parents first, and how to find the rows of hotel %1$d
+   private static final String[][] HOTEL_TABLES = {
+      { "Hotel", "hotelID = %1$d" },
+      { "Rooms", "hotelID = %1$d" },
+      { "RoomPriceHistory", "hotelID = %1$d" },
+      { "RoomBookings", "hotelID = %1$d" },
+      { "RoomRepairs", "hotelID = %1$d" },
+      { "RoomRepairRequests", "repairID IN (SELECT repairID FROM RoomRepairs WHERE hotelID = %1$d)" },
+      { "RoomUpdatesLog", "hotelID = %1$d" },
+   };
+
+   // the tables copied to every shard, and their keys
+   private static final String[][] REFERENCE_TABLES = {
+      { "Users", "userID" },
+      { "MaintenanceCompany", "companyID" },
+   };
+
+   private final ShardRouter router;
+
+   public ShardRebalancer(ShardRouter router) {
+      this.router = router;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 5 || (args[4].equals("move") && args.length != 7)) {
+         System.err.println("Usage: java [-classpath <classpath>] " + ShardRebalancer.class.getName()
+                            + " <dbname> <port> <user> <shard dbname or host:port/dbname>,..."
+                            + " status | plan | balance | clean | sync | move <hotelID>[,...] <shard>");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      ShardRouter router = new ShardRouter(url, args[2], "", DriverManager.getConnection(url, args[2], ""));
+      for (String shard : args[3].split(",")) {
+         shard = shard.trim();
+         router.addShard(shard.contains("/") ? "jdbc:postgresql://" + shard : "jdbc:postgresql://localhost:" + args[1] + "/" + shard);
+      }
+      router.start();
+      ShardRebalancer rebalancer = new ShardRebalancer(router);
+      try {
+         String command = args[4];
+         if (command.equals("status")) {
+            rebalancer.printStatus();
+         } else if (command.equals("plan") || command.equals("balance")) {
+            List<int[]> moves = rebalancer.plan();
+            for (int[] move : moves) {
+               System.out.printf("hotel %d: shard %d -> %d (%d bookings)%n", move[0], move[1], move[2], move[3]);
+            }
+            if (command.equals("balance")) {
+               for (int[] move : moves) {
+                  rebalancer.move(move[0], move[2]);
+               }
+            }
+         } else if (command.equals("clean")) {
+            rebalancer.clean();
+         } else if (command.equals("sync")) {
+            rebalancer.sync();
+         } else if (command.equals("move")) {
+            int target = Integer.parseInt(args[6]);
+            for (String hotel : args[5].split(",")) {
+               rebalancer.move(Integer.parseInt(hotel.trim()), target);
+            }
+         } else {
+            System.err.println("Unknown command " + command);
+         }
+      } finally {
+         router.close();
+         router.connection(0).close();
+      }
+   }
+
+   /**
+    * Moves a hotel and all its rows to another shard.
+    *
+    * @return the number of rows moved
+    * @throws java.sql.SQLException when the move failed; the hotel stays where it was
+    */
+   public long move(int hotelID, int target) throws SQLException {
+      long start = System.currentTimeMillis();
+      long rows = 0;
+      int source;
+      Connection directory = router.open(0);
+      Connection from = null;
+      Connection to = null;
+      try {
+         directory.setAutoCommit(false);
+         source = router.lock(directory, hotelID);
+         if (source == target) {
+            directory.rollback();
+            return 0;
+         }
+         from = router.open(source);
+         to = router.open(target);
+         from.setAutoCommit(false);
+         to.setAutoCommit(false);
+         Statement src = from.createStatement();
+         Statement dst = to.createStatement();
+
+         // keeps the hotel from changing on the source until the move is over
+         ResultSet rs = src.executeQuery(String.format("SELECT hotelID FROM Hotel WHERE hotelID = %d FOR UPDATE", hotelID));
+         boolean found = rs.next();
+         rs.close();
+         if (!found) {
+            throw new SQLException("Hotel " + hotelID + " is not on shard " + source + ".");
+         }
+         src.executeQuery(String.format("SELECT roomNumber FROM Rooms WHERE hotelID = %d FOR UPDATE", hotelID)).close();
+
+         List<String[]> tables = commonTables(src, dst);
+         // left over by a move that stopped after its target committed
+         deleteHotel(dst, tables, hotelID);
+         for (String[] table : tables) {
+            if (table[0].equals("RoomPriceHistory")) {
+               // copying Rooms made the price history trigger add a version as of now
+               dst.executeUpdate(String.format("DELETE FROM RoomPriceHistory WHERE hotelID = %d AND validFrom = now()", hotelID));
+            }
+            rows += copy(src, dst, table[0], String.format(table[1], hotelID));
+         }
+         deleteHotel(src, tables, hotelID);
+
+         to.commit();
+         router.assign(directory, hotelID, target);
+         directory.commit();
+         from.commit();
+      }catch (SQLException e){
+         rollback(to);
+         rollback(directory);
+         rollback(from);
+         throw e;
+      } finally {
+         close(from);
+         close(to);
+         close(directory);
+      }
+      System.out.printf("hotel %d moved from shard %d to %d: %d rows in %d ms%n", hotelID, source, target, rows,
+                        System.currentTimeMillis() - start);
+      return rows;
+   }
+
+   // the tables of HOTEL_TABLES present on both shards; the price history is optional
+   private static List<String[]> commonTables(Statement src, Statement dst) throws SQLException {
+      List<String[]> tables = new ArrayList<String[]>();
+      for (String[] table : HOTEL_TABLES) {
+         if (exists(src, table[0]) && exists(dst, table[0])) {
+            tables.add(table);
+         }
+      }
+      return tables;
+   }
+
+   private static boolean exists(Statement stmt, String table) throws SQLException {
+      ResultSet rs = stmt.executeQuery(String.format("SELECT to_regclass('%s') IS NOT NULL", table.toLowerCase()));
+      rs.next();
+      boolean exists = rs.getBoolean(1);
+      rs.close();
+      return exists;
+   }
+
+   private static void deleteHotel(Statement stmt, List<String[]> tables, int hotelID) throws SQLException {
+      for (int i = tables.size() - 1; i >= 0; i--) {
+         stmt.executeUpdate(String.format("DELETE FROM %s WHERE %s", tables.get(i)[0], String.format(tables.get(i)[1], hotelID)));
+      }
+   }
+
+   private static long copy(Statement src, Statement dst, String table, String where) throws SQLException {
+      return insert(src.executeQuery(String.format("SELECT * FROM %s WHERE %s", table, where)), dst, table, null, null);
+   }
+
+   /**
+    * Inserts the rows of a result into a table, in statements of INSERT_ROWS
+    * rows. With a key, rows whose key is in skip are left out and rows
+    * inserted meanwhile by someone else are ignored.
+    */
+   private static long insert(ResultSet rs, Statement dst, String table, String key, Set<Integer> skip) throws SQLException {
+      ResultSetMetaData meta = rs.getMetaData();
+      int columns = meta.getColumnCount();
+      StringBuilder head = new StringBuilder("INSERT INTO ").append(table).append(" (");
+      for (int i = 1; i <= columns; i++) {
+         head.append(i == 1 ? "" : ", ").append(meta.getColumnName(i));
+      }
+      head.append(") VALUES ");
+      String tail = key == null ? "" : " ON CONFLICT (" + key + ") DO NOTHING";
+
+      long rows = 0;
+      StringBuilder insert = new StringBuilder(head);
+      int pending = 0;
+      while (rs.next()) {
+         if (key != null && skip.contains(rs.getInt(key))) {
+            continue;
+         }
+         insert.append(pending == 0 ? "(" : ", (");
+         for (int i = 1; i <= columns; i++) {
+            String value = rs.getString(i);
+            insert.append(i == 1 ? "" : ", ")
+                  .append(value == null ? "NULL" : "'" + value.replace("'", "''") + "'");
+         }
+         insert.append(')');
+         rows++;
+         if (++pending == INSERT_ROWS) {
+            dst.executeUpdate(insert.append(tail).toString());
+            insert.setLength(0);
+            insert.append(head);
+            pending = 0;
+         }
+      }
+      rs.close();
+      if (pending > 0) {
+         dst.executeUpdate(insert.append(tail).toString());
+      }
+      return rows;
+   }
+
+   private static void rollback(Connection connection) {
+      try {
+         if (connection != null) {
+            connection.rollback();
+         }
+      }catch (SQLException e){
+         // ignored.
+      }
+   }
+
+   private static void close(Connection connection) {
+      try {
+         if (connection != null) {
+            connection.close();
+         }
+      }catch (SQLException e){
+         // ignored.
+      }
+   }
+
+   /**
+    * @return for each shard, hotelID -> number of bookings of the hotels it
+    *         holds, strays (hotels the directory places elsewhere) included
+    * @throws java.sql.SQLException when a shard cannot be read
+    */
+   private List<Map<Integer, Integer>> load() throws SQLException {
+      return router.scatter((shard, connection) -> {
+         Map<Integer, Integer> hotels = new TreeMap<Integer, Integer>();
+         Statement stmt = connection.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery(
+               "SELECT H.hotelID, (SELECT COUNT(*) FROM RoomBookings RB WHERE RB.hotelID = H.hotelID) FROM Hotel H");
+            while (rs.next()) {
+               hotels.put(rs.getInt(1), rs.getInt(2));
+            }
+         } finally {
+            stmt.close();
+         }
+         return hotels;
+      });
+   }
+
+   /**
+    * Prints the hotels and bookings of every shard, and the stray copies.
+    *
+    * @throws java.sql.SQLException when a shard cannot be read
+    */
+   public void printStatus() throws SQLException {
+      List<Map<Integer, Integer>> shards = load();
+      System.out.printf("%-6s %8s %10s %7s%n", "Shard", "Hotels", "Bookings", "Strays");
+      for (int shard = 0; shard < shards.size(); shard++) {
+         int hotels = 0;
+         long bookings = 0;
+         List<Integer> strays = new ArrayList<Integer>();
+         for (Map.Entry<Integer, Integer> hotel : shards.get(shard).entrySet()) {
+            if (router.shardOf(hotel.getKey()) != shard) {
+               strays.add(hotel.getKey());
+               continue;
+            }
+            hotels++;
+            bookings += hotel.getValue();
+         }
+         System.out.printf("%-6d %8d %10d %7d%s%n", shard, hotels, bookings, strays.size(),
+                           strays.isEmpty() ? "" : " " + strays);
+      }
+   }
+
+   /**
+    * Deletes the copies of hotels left on a shard the directory does not
+    * place them on. The cached directory only picks the candidates; each is
+    * checked again with its directory row locked until the delete commits.
+    *
+    * @throws java.sql.SQLException when a shard cannot be read or written
+    */
+   public void clean() throws SQLException {
+      List<Map<Integer, Integer>> shards = load();
+      for (int shard = 0; shard < shards.size(); shard++) {
+         for (Integer hotelID : shards.get(shard).keySet()) {
+            if (router.shardOf(hotelID) == shard) {
+               continue;
+            }
+            Connection directory = router.open(0);
+            Connection connection = null;
+            try {
+               directory.setAutoCommit(false);
+               if (router.lock(directory, hotelID) == shard) {
+                  directory.rollback();
+                  continue; // moved here since the directory was loaded
+               }
+               connection = router.open(shard);
+               connection.setAutoCommit(false);
+               Statement stmt = connection.createStatement();
+               deleteHotel(stmt, commonTables(stmt, stmt), hotelID);
+               connection.commit();
+               directory.commit();
+            }catch (SQLException e){
+               rollback(connection);
+               rollback(directory);
+               throw e;
+            } finally {
+               close(connection);
+               close(directory);
+            }
+            System.out.printf("stray copy of hotel %d deleted from shard %d%n", hotelID, shard);
+         }
+      }
+   }
+
+   /**
+    * Copies the Users and MaintenanceCompany rows of shard 0 that another
+    * shard is missing, e.g. because it was down when a user signed up.
+    *
+    * @throws java.sql.SQLException when a shard cannot be read or written
+    */
+   public void sync() throws SQLException {
+      Connection source = router.connection(0);
+      for (int shard = 1; shard < router.getShardCount(); shard++) {
+         Connection connection = router.open(shard);
+         try {
+            Statement src = source.createStatement();
+            Statement dst = connection.createStatement();
+            for (String[] table : REFERENCE_TABLES) {
+               Set<Integer> present = new HashSet<Integer>();
+               ResultSet rs = dst.executeQuery(String.format("SELECT %s FROM %s", table[1], table[0]));
+               while (rs.next()) {
+                  present.add(rs.getInt(1));
+               }
+               rs.close();
+               long rows = insert(src.executeQuery(String.format("SELECT * FROM %s", table[0])), dst, table[0],
+                                  table[1], present);
+               System.out.printf("%d %s rows copied to shard %d%n", rows, table[0], shard);
+            }
+            src.close();
+            dst.close();
+         } finally {
+            connection.close();
+         }
+      }
+   }
+
+   /**
+    * Plans moves that even out the bookings per shard: the hotel whose
+    * bookings come closest to half the gap between the fullest and the
+    * emptiest shard moves from one to the other, until every shard is within
+    * TOLERANCE of the average or no move narrows the gap.
+    *
+    * @return the moves as {hotelID, from shard, to shard, bookings}
+    * @throws java.sql.SQLException when a shard cannot be read
+    */
+   public List<int[]> plan() throws SQLException {
+      List<Map<Integer, Integer>> shards = load();
+      int n = shards.size();
+      long[] bookings = new long[n];
+      long total = 0;
+      for (int shard = 0; shard < n; shard++) {
+         final int here = shard;
+         shards.get(shard).keySet().removeIf(hotelID -> router.shardOf(hotelID) != here);
+      }
+      for (int shard = 0; shard < n; shard++) {
+         for (int count : shards.get(shard).values()) {
+            bookings[shard] += count;
+         }
+         total += bookings[shard];
+      }
+      double slack = TOLERANCE * total / n;
+
+      List<int[]> moves = new ArrayList<int[]>();
+      while (true) {
+         int fullest = 0;
+         int emptiest = 0;
+         for (int shard = 1; shard < n; shard++) {
+            if (bookings[shard] > bookings[fullest]) {
+               fullest = shard;
+            }
+            if (bookings[shard] < bookings[emptiest]) {
+               emptiest = shard;
+            }
+         }
+         long gap = bookings[fullest] - bookings[emptiest];
+         if (gap <= 2 * slack) {
+            return moves;
+         }
+         Integer best = null;
+         for (Map.Entry<Integer, Integer> hotel : shards.get(fullest).entrySet()) {
+            int count = hotel.getValue();
+            // a move narrows the gap only when the hotel has fewer bookings than the gap
+            if (count > 0 && count < gap
+                && (best == null || Math.abs(2L * count - gap) < Math.abs(2L * shards.get(fullest).get(best) - gap))) {
+               best = hotel.getKey();
+            }
+         }
+         if (best == null) {
+            return moves;
+         }
+         int count = shards.get(fullest).remove(best);
+         shards.get(emptiest).put(best, count);
+         bookings[fullest] -= count;
+         bookings[emptiest] += count;
+         moves.add(new int[] { best, fullest, emptiest, count });
+      }
+   }
+
+}//end ShardRebalancer
@@ -0,0 +1,334 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class spreads the hotels over several databases (shards). Hotel,
+ * Rooms, RoomBookings, RoomRepairs, RoomRepairRequests and RoomUpdatesLog
+ * rows live on the shard of their hotel, while Users and MaintenanceCompany
+ * are copied to every shard. Shard 0 is the database Hotel connects to. It
+ * holds the directory, HotelShards, which says where each hotel is (see
+ * create_shards.sh); hotels missing from it are placed by hotelID modulo
+ * the number of shards.
+ *
+ * The directory is cached and reloaded every DIRECTORY_RELOAD_SECONDS, so a
+ * hotel moved by ShardRebalancer is found at its new shard within that time.
+ * Directory listeners are told about every hotel a reload finds moved, so
+ * state read from its old shard can be dropped.
+ * Queries that span hotels run on every shard in parallel, and their rows
+ * are merged in the order of the query.
+ *
+ */
+public class ShardRouter {
+
+   private static final int DIRECTORY_RELOAD_SECONDS = 10;
+
+   /**
+    * One shard database.
+    */
+   static class Shard {
+      final int index;
+      final String url;
+      final Connection connection;
+
+      Shard(int index, String url, Connection connection) {
+         this.index = index;
+         this.url = url;
+         this.connection = connection;
+      }
+   }
+
+   /**
+    * A query to run on one shard.
+    */
+   public interface ShardTask<T> {
+      T run(int shard, Connection connection) throws SQLException;
+   }
+
+   /**
+    * Told when the directory places a hotel on another shard than before.
+    */
+   public interface DirectoryListener {
+      void moved(int hotelID);
+   }
+
+   private final String user;
+   private final String passwd;
+   private final List<Shard> shards = new ArrayList<Shard>();
+   private final Map<Integer, Integer> directory = new ConcurrentHashMap<Integer, Integer>();
+   private final List<DirectoryListener> listeners = new CopyOnWriteArrayList<DirectoryListener>();
+   private ExecutorService scatterPool = null;
+   private ScheduledExecutorService reloader = null;
+
+   /**
+    * @param url the URL of shard 0
+    * @param connection the connection to shard 0, also used by Hotel
+    */
+   public ShardRouter(String url, String user, String passwd, Connection connection) {
+      this.user = user;
+      this.passwd = passwd;
+      this.shards.add(new Shard(0, url, connection));
+   }
+
+   /**
+    * Connects to the next shard.
+    *
+    * @throws java.sql.SQLException when the shard cannot be reached
+    */
+   public void addShard(String url) throws SQLException {
+      shards.add(new Shard(shards.size(), url, DriverManager.getConnection(url, user, passwd)));
+   }
+
+   public void addDirectoryListener(DirectoryListener listener) {
+      listeners.add(listener);
+   }
+
+   /**
+    * Loads the directory and keeps reloading it in the background.
+    *
+    * @throws java.sql.SQLException when the directory cannot be read
+    */
+   public void start() throws SQLException {
+      loadDirectory();
+      ThreadFactory daemons = new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "shard-router");
+            t.setDaemon(true);
+            return t;
+         }
+      };
+      scatterPool = Executors.newFixedThreadPool(shards.size(), daemons);
+      reloader = Executors.newSingleThreadScheduledExecutor(daemons);
+      reloader.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               loadDirectory();
+            }catch (SQLException e){
+               // keep the last directory; the next reload tries again
+            }
+         }
+      }, DIRECTORY_RELOAD_SECONDS, DIRECTORY_RELOAD_SECONDS, TimeUnit.SECONDS);
+   }
+
+   /**
+    * Reads HotelShards from shard 0, on a connection of its own.
+    *
+    * @throws java.sql.SQLException when the directory cannot be read
+    */
+   public void loadDirectory() throws SQLException {
+      Connection connection = open(0);
+      try {
+         Statement stmt = connection.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT hotelID, shard FROM HotelShards");
+         while (rs.next()) {
+            place(rs.getInt(1), rs.getInt(2));
+         }
+         stmt.close();
+      } finally {
+         connection.close();
+      }
+   }
+
+   public int getShardCount() {
+      return shards.size();
+   }
+
+   /**
+    * @return the shard a hotel lives on
+    */
+   public int shardOf(int hotelID) {
+      Integer shard = directory.get(hotelID);
+      if (shard != null && shard < shards.size()) {
+         return shard;
+      }
+      return Math.floorMod(hotelID, shards.size());
+   }
+
+   public Connection connection(int shard) {
+      return shards.get(shard).connection;
+   }
+
+   public String url(int shard) {
+      return shards.get(shard).url;
+   }
+
+   /**
+    * Opens another connection to a shard.
+    *
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection open(int shard) throws SQLException {
+      return DriverManager.getConnection(shards.get(shard).url, user, passwd);
+   }
+
+   // caches where a hotel is and tells the listeners when that changed
+   private void place(int hotelID, int shard) {
+      int before = shardOf(hotelID);
+      directory.put(hotelID, shard);
+      if (shardOf(hotelID) != before) {
+         for (DirectoryListener listener : listeners) {
+            listener.moved(hotelID);
+         }
+      }
+   }
+
+   /**
+    * Locks the directory row of a hotel until the transaction of a
+    * connection to shard 0 ends, adding the row when the hotel is only
+    * placed by modulo, so moves and cleanups of the hotel take turns.
+    *
+    * @return the shard the directory places the hotel on
+    * @throws java.sql.SQLException when the directory cannot be locked
+    */
+   public int lock(Connection connection, int hotelID) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         stmt.executeUpdate(String.format("INSERT INTO HotelShards VALUES (%d, %d) ON CONFLICT (hotelID) DO NOTHING",
+                                          hotelID, Math.floorMod(hotelID, shards.size())));
+         ResultSet rs = stmt.executeQuery(String.format("SELECT shard FROM HotelShards WHERE hotelID = %d FOR UPDATE", hotelID));
+         rs.next();
+         int shard = rs.getInt(1);
+         place(hotelID, shard);
+         return shard;
+      } finally {
+         stmt.close();
+      }
+   }
+
+   /**
+    * Records that a hotel now lives on a shard, in the transaction of a
+    * connection to shard 0 that holds its lock(), and in the cache.
+    *
+    * @throws java.sql.SQLException when the directory cannot be written
+    */
+   public void assign(Connection connection, int hotelID, int shard) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         stmt.executeUpdate(String.format("UPDATE HotelShards SET shard = %d WHERE hotelID = %d", shard, hotelID));
+      } finally {
+         stmt.close();
+      }
+      place(hotelID, shard);
+   }
+
+   /**
+    * Runs a task on every shard in parallel, each on the shard's own
+    * connection.
+    *
+    * @return the results in shard order
+    * @throws java.sql.SQLException the first failure of any shard
+    */
+   public <T> List<T> scatter(final ShardTask<T> task) throws SQLException {
+      List<Future<T>> futures = new ArrayList<Future<T>>();
+      for (final Shard shard : shards) {
+         futures.add(scatterPool.submit(new Callable<T>() {
+            public T call() throws SQLException {
+               return task.run(shard.index, shard.connection);
+            }
+         }));
+      }
+      List<T> results = new ArrayList<T>();
+      SQLException failure = null;
+      for (Future<T> future : futures) {
+         try {
+            results.add(future.get());
+         }catch (ExecutionException e){
+            if (failure == null) {
+               failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                                                              : new SQLException(e.getCause().toString());
+            }
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while querying the shards");
+         }
+      }
+      if (failure != null) {
+         throw failure;
+      }
+      return results;
+   }
+
+   /**
+    * Merges the rows returned by the shards. With an order every shard's
+    * rows must already be sorted by it, as by the query's ORDER BY, and a
+    * k-way merge keeps them sorted; without one they are concatenated in
+    * shard order.
+    *
+    * @param order the order of the rows, or null
+    * @param limit the most rows to return, or a negative number for all
+    */
+   public static List<List<String>> merge(List<List<List<String>>> perShard, final Comparator<List<String>> order, int limit) {
+      List<List<String>> merged = new ArrayList<List<String>>();
+      int max = limit < 0 ? Integer.MAX_VALUE : limit;
+      if (order == null) {
+         for (List<List<String>> rows : perShard) {
+            for (List<String> row : rows) {
+               if (merged.size() == max) {
+                  return merged;
+               }
+               merged.add(row);
+            }
+         }
+         return merged;
+      }
+      final List<List<List<String>>> lists = perShard;
+      // heads of the shards' lists as {shard, position}
+      PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(1, lists.size()), new Comparator<int[]>() {
+         public int compare(int[] a, int[] b) {
+            int c = order.compare(lists.get(a[0]).get(a[1]), lists.get(b[0]).get(b[1]));
+            return c != 0 ? c : Integer.compare(a[0], b[0]);
+         }
+      });
+      for (int s = 0; s < lists.size(); s++) {
+         if (!lists.get(s).isEmpty()) {
+            heads.add(new int[] { s, 0 });
+         }
+      }
+      while (!heads.isEmpty() && merged.size() < max) {
+         int[] head = heads.poll();
+         List<List<String>> rows = lists.get(head[0]);
+         merged.add(rows.get(head[1]));
+         if (head[1] + 1 < rows.size()) {
+            heads.add(new int[] { head[0], head[1] + 1 });
+         }
+      }
+      return merged;
+   }
+
+   public void close() {
+      if (reloader != null) {
+         reloader.shutdownNow();
+      }
+      if (scatterPool != null) {
+         scatterPool.shutdownNow();
+      }
+      for (Shard shard : shards) {
+         if (shard.index == 0) {
+            continue; // closed by Hotel
+         }
+         try {
+            shard.connection.close();
+         }catch (SQLException e){
+            // ignored.
+         }
+      }
+   }
+
+}//end ShardRouter
@@ -0,0 +1,282 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs the statements of one business operation as a single
+ * transaction at a chosen isolation level. Writes are queued with addBatch,
+ * sent together at flush() or commit and committed once, so either all of an
+ * operation's writes happen or none. Whether that also raises throughput
+ * depends on the server; benchmarkRoomUpdates measures it.
+ *
+ * When the transaction fails on a serialization failure or a deadlock the
+ * work is rolled back and run again from the start, after a jittered
+ * exponential backoff.
+ *
+ */
+public class UnitOfWork {
+
+   private static final int MAX_ATTEMPTS = 5;
+   private static final long BASE_BACKOFF_MILLIS = 10;
+   private static final long MAX_BACKOFF_MILLIS = 500;
+
+   /**
+    * The body of a transaction. It may run more than once, so it must not
+    * have effects outside the database (e.g. reading the keyboard).
+    */
+   public interface Work<T> {
+      T run(UnitOfWork uow) throws SQLException;
+   }
+
+   private final Hotel esql;
+   private final List<String> batch = new ArrayList<String>();
+
+   private UnitOfWork(Hotel esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Queues a write, sent with the next flush or at commit.
+    */
+   public void addBatch(String sql) {
+      batch.add(sql);
+   }
+
+   /**
+    * Sends the queued writes. Call before reading rows written earlier in
+    * the same unit of work.
+    */
+   public void flush() throws SQLException {
+      if (!batch.isEmpty()) {
+         esql.executeBatch(batch);
+         batch.clear();
+      }
+   }
+
+   /**
+    * Runs work in one transaction on a connection, retrying it on
+    * serialization failures and deadlocks.
+    *
+    * @param esql the database handle the work issues its statements through
+    * @param connection the connection those statements run on
+    * @param isolation one of the Connection.TRANSACTION_* levels
+    * @return what the work returned
+    * @throws java.sql.SQLException when the work failed for another reason, or kept failing
+    */
+   public static <T> T run(Hotel esql, Connection connection, int isolation, Work<T> work) throws SQLException {
+      boolean autoCommit = connection.getAutoCommit();
+      int previousIsolation = connection.getTransactionIsolation();
+      connection.setAutoCommit(false);
+      connection.setTransactionIsolation(isolation);
+      try {
+         for (int attempt = 1; ; attempt++) {
+            UnitOfWork uow = new UnitOfWork(esql);
+            try {
+               T result = work.run(uow);
+               uow.flush();
+               connection.commit();
+               return result;
+            }catch (SQLException e){
+               rollback(connection);
+               if (!isRetryable(e) || attempt == MAX_ATTEMPTS) {
+                  throw e;
+               }
+               backoff(attempt);
+            }catch (RuntimeException e){
+               rollback(connection);
+               throw e;
+            }
+         }
+      } finally {
+         connection.setTransactionIsolation(previousIsolation);
+         connection.setAutoCommit(autoCommit);
+      }
+   }
+
+   private static void rollback(Connection connection) {
+      try {
+         connection.rollback();
+      }catch (SQLException e){
+         // the transaction is gone with the connection; nothing to undo.
+      }
+   }
+
+   /**
+    * Serialization failures (40001) and deadlocks (40P01) succeed when run
+    * again. Older drivers report no SQLSTATE, so the message is checked too.
+    */
+   static boolean isRetryable(SQLException e) {
+      for (Throwable t = e; t != null; t = t.getCause()) {
+         if (t instanceof SQLException) {
+            String state = ((SQLException) t).getSQLState();
+            if ("40001".equals(state) || "40P01".equals(state)) {
+               return true;
+            }
+         }
+         String message = t.getMessage();
+         if (message != null && (message.contains("could not serialize") || message.contains("deadlock detected"))) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static void backoff(int attempt) throws SQLException {
+      long cap = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempt);
+      try {
+         Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while retrying a transaction");
+      }
+   }
+
+   /**
+    * Measures room updates by several concurrent managers, each on a
+    * connection of its own, first with every statement committed on its
+    * own (as before) and then with one transaction per update. Each update
+    * sets a room of the hotel to its current price and logs it, like
+    * updateRoomInfo, but in scratch copies of Rooms and RoomUpdatesLog
+    * that are dropped at the end, so the audit log, the change feed and
+    * the price history never see them.
+    *
+    * @return a short report of both throughputs
+    * @throws java.sql.SQLException when the hotel has no rooms or a statement fails
+    */
+   public static String benchmarkRoomUpdates(final Hotel esql, final int managerID, final int hotelID,
+                                             int managers, final int updatesPerManager) throws SQLException {
+      // set up and dropped outside the benchmark's budget, so a benchmark that ran out of it still cleans up
+      Connection scratch = esql.openConnection();
+      try {
+         Statement stmt = scratch.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery("SELECT pg_backend_pid()");
+            rs.next();
+            String rooms = "BenchmarkRooms" + rs.getInt(1);
+            String log = "BenchmarkUpdatesLog" + rs.getInt(1);
+            stmt.executeUpdate(String.format(
+                  "CREATE TABLE %s AS SELECT hotelID, roomNumber, price FROM Rooms WHERE hotelID = %d", rooms, hotelID));
+            try {
+               stmt.executeUpdate(String.format("ALTER TABLE %s ADD PRIMARY KEY (hotelID, roomNumber)", rooms));
+               stmt.executeUpdate(String.format(
+                     "CREATE TABLE %s (updateNumber serial PRIMARY KEY, managerID integer NOT NULL, "
+                     + "hotelID integer NOT NULL, roomNumber integer NOT NULL, updatedOn timestamp NOT NULL, "
+                     + "FOREIGN KEY (hotelID, roomNumber) REFERENCES %s (hotelID, roomNumber))", log, rooms));
+               return benchmarkRoomUpdates(esql, stmt, rooms, log, managerID, hotelID, managers, updatesPerManager);
+            } finally {
+               stmt.executeUpdate(String.format("DROP TABLE IF EXISTS %s, %s", log, rooms));
+            }
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         scratch.close();
+      }
+   }
+
+   private static String benchmarkRoomUpdates(final Hotel esql, Statement stmt, String roomsTable, String logTable,
+                                              int managerID, int hotelID, int managers, final int updatesPerManager) throws SQLException {
+      final List<String[]> updates = new ArrayList<String[]>();
+      ResultSet rs = stmt.executeQuery(String.format("SELECT hotelID, roomNumber, price FROM %s ORDER BY roomNumber", roomsTable));
+      while (rs.next()) {
+         updates.add(new String[] {
+            String.format("UPDATE %s SET price = %d WHERE hotelID = %d AND roomNumber = %d",
+                          roomsTable, rs.getInt(3), rs.getInt(1), rs.getInt(2)),
+            String.format("INSERT INTO %s (managerID, hotelID, roomNumber, updatedOn) VALUES (%d, %d, %d, now())",
+                          logTable, managerID, rs.getInt(1), rs.getInt(2))
+         });
+      }
+      rs.close();
+      if (updates.isEmpty()) {
+         throw new SQLException("Hotel " + hotelID + " has no rooms.");
+      }
+
+      StringBuilder report = new StringBuilder();
+      for (final boolean grouped : new boolean[] { false, true }) {
+         final CountDownLatch done = new CountDownLatch(managers);
+         final AtomicLong failures = new AtomicLong();
+         final List<Connection> connections = new ArrayList<Connection>();
+         for (int m = 0; m < managers; m++) {
+            connections.add(esql.openConnection());
+         }
+         long start = System.nanoTime();
+         for (int m = 0; m < managers; m++) {
+            final Connection connection = connections.get(m);
+            final int offset = m;
+            new Thread(new Runnable() {
+               public void run() {
+                  try {
+                     for (int i = 0; i < updatesPerManager; i++) {
+                        String[] update = updates.get((offset + i) % updates.size());
+                        if (grouped) {
+                           runGrouped(esql, connection, update);
+                        } else {
+                           runEach(esql, connection, update);
+                        }
+                     }
+                  }catch (SQLException e){
+                     failures.incrementAndGet();
+                  }finally{
+                     done.countDown();
+                  }
+               }
+            }).start();
+         }
+         try {
+            done.await();
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }
+         double seconds = (System.nanoTime() - start) / 1e9;
+         for (Connection connection : connections) {
+            connection.close();
+         }
+         report.append(String.format("%-32s %8.1f updates/s%s%n",
+                                     grouped ? "One transaction per update:" : "Autocommit per statement:",
+                                     managers * updatesPerManager / seconds,
+                                     failures.get() > 0 ? " (" + failures.get() + " managers failed)" : ""));
+      }
+      return report.toString();
+   }
+
+   // through esql, so the statements share the benchmark's budget
+   private static void runEach(Hotel esql, Connection connection, String[] update) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         for (String sql : update) {
+            esql.executeUpdate(stmt, sql);
+         }
+      } finally {
+         stmt.close();
+      }
+   }
+
+   private static void runGrouped(Hotel esql, Connection connection, String[] update) throws SQLException {
+      connection.setAutoCommit(false);
+      for (int attempt = 1; ; attempt++) {
+         Statement stmt = connection.createStatement();
+         try {
+            for (String sql : update) {
+               esql.executeUpdate(stmt, sql);
+            }
+            connection.commit();
+            return;
+         }catch (SQLException e){
+            rollback(connection);
+            if (!isRetryable(e) || attempt == MAX_ATTEMPTS) {
+               throw e;
+            }
+            backoff(attempt);
+         }finally{
+            stmt.close();
+         }
+      }
+   }
+
+}//end UnitOfWork
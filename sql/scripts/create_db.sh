@@ -3,4 +3,6 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_tables.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_indexes.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/load_data.sql
-
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_change_feed.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_rollups.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_price_history.sql
@@ -0,0 +1,25 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#Splits the hotels of $USER"_DB" over it and <shards> - 1 more databases ($USER"_DB_shard1", ...) by hotelID modulo <shards>.
+#Then run the application with PGSHARDS=$USER"_DB_shard1",... (see java/scripts/compile.sh).
+#Usage: create_shards.sh <shards>
+SHARDS=${1:?Usage: create_shards.sh <shards>}
+
+for ((k = 1; k < SHARDS; k++)); do
+   DB=$USER"_DB_shard"$k
+   dropdb --if-exists -h localhost -p $PGPORT $DB
+   createdb -h localhost -p $PGPORT $DB
+   for SCRIPT in create_tables create_indexes load_data create_change_feed create_rollups create_price_history; do
+      psql -h localhost -p $PGPORT $DB < $DIR/../src/$SCRIPT.sql
+   done
+done
+
+for ((k = 0; k < SHARDS; k++)); do
+   DB=$USER"_DB"
+   if [ $k -gt 0 ]; then
+      DB=$USER"_DB_shard"$k
+   fi
+   #the rollup triggers queue the deletes, so the rollups catch up on their next refresh
+   psql -h localhost -p $PGPORT -v shard=$k -v shards=$SHARDS $DB < $DIR/../src/create_shard.sql
+done
@@ -0,0 +1,71 @@
+DROP TABLE IF EXISTS ChangeFeed CASCADE;
+DROP TABLE IF EXISTS ChangeFeedConsumers CASCADE;
+
+--Every change to Hotel, Rooms and RoomBookings is appended here by a trigger. Application instances
+--follow the table by sequence number, so a missed notification or a reconnect never loses a change.
+CREATE TABLE ChangeFeed (
+                        seq bigserial,
+                        tableName char(12) NOT NULL,
+                        op char(1) NOT NULL,  ---'I', 'U' or 'D'
+                        hotelID integer NOT NULL,
+                        roomNumber integer,
+                        bookingDate date,
+                        changedOn timestamp NOT NULL DEFAULT clock_timestamp(),
+                        PRIMARY KEY(seq)
+);
+
+--How far each application instance has read ChangeFeed. Rows up to the lowest seq here are deleted;
+--instances that have not updated their row for a while are considered gone (see ChangeFeed.java).
+CREATE TABLE ChangeFeedConsumers (
+                        consumerID bigserial,
+                        seq bigint NOT NULL,
+                        seenOn timestamp NOT NULL DEFAULT now(),
+                        PRIMARY KEY(consumerID)
+);
+
+CREATE OR REPLACE FUNCTION publish_change()
+RETURNS trigger AS $feed$
+DECLARE
+   op char(1) := substr(TG_OP, 1, 1);
+BEGIN
+   --an UPDATE that changes the key also publishes the old key, so both entries are invalidated
+   IF TG_TABLE_NAME = 'hotel' THEN
+      IF TG_OP <> 'DELETE' THEN
+         INSERT INTO ChangeFeed (tableName, op, hotelID) VALUES (TG_TABLE_NAME, op, NEW.hotelID);
+      END IF;
+      IF TG_OP = 'DELETE' OR (TG_OP = 'UPDATE' AND OLD.hotelID <> NEW.hotelID) THEN
+         INSERT INTO ChangeFeed (tableName, op, hotelID) VALUES (TG_TABLE_NAME, op, OLD.hotelID);
+      END IF;
+   ELSIF TG_TABLE_NAME = 'rooms' THEN
+      IF TG_OP <> 'DELETE' THEN
+         INSERT INTO ChangeFeed (tableName, op, hotelID, roomNumber)
+         VALUES (TG_TABLE_NAME, op, NEW.hotelID, NEW.roomNumber);
+      END IF;
+      IF TG_OP = 'DELETE' OR (TG_OP = 'UPDATE' AND (OLD.hotelID, OLD.roomNumber) <> (NEW.hotelID, NEW.roomNumber)) THEN
+         INSERT INTO ChangeFeed (tableName, op, hotelID, roomNumber)
+         VALUES (TG_TABLE_NAME, op, OLD.hotelID, OLD.roomNumber);
+      END IF;
+   ELSE
+      IF TG_OP <> 'DELETE' THEN
+         INSERT INTO ChangeFeed (tableName, op, hotelID, roomNumber, bookingDate)
+         VALUES (TG_TABLE_NAME, op, NEW.hotelID, NEW.roomNumber, NEW.bookingDate);
+      END IF;
+      IF TG_OP = 'DELETE' OR (TG_OP = 'UPDATE' AND (OLD.hotelID, OLD.roomNumber, OLD.bookingDate)
+                                               <> (NEW.hotelID, NEW.roomNumber, NEW.bookingDate)) THEN
+         INSERT INTO ChangeFeed (tableName, op, hotelID, roomNumber, bookingDate)
+         VALUES (TG_TABLE_NAME, op, OLD.hotelID, OLD.roomNumber, OLD.bookingDate);
+      END IF;
+   END IF;
+
+   --delivered at commit; listeners use it as a wake up and read ChangeFeed from their last seq
+   PERFORM pg_notify('hotel_changes', currval('changefeed_seq_seq')::text);
+   RETURN NULL;
+END;
+$feed$ LANGUAGE plpgsql;
+
+CREATE TRIGGER hotel_change_feed AFTER INSERT OR UPDATE OR DELETE ON Hotel
+   FOR EACH ROW EXECUTE PROCEDURE publish_change();
+CREATE TRIGGER rooms_change_feed AFTER INSERT OR UPDATE OR DELETE ON Rooms
+   FOR EACH ROW EXECUTE PROCEDURE publish_change();
+CREATE TRIGGER roombookings_change_feed AFTER INSERT OR UPDATE OR DELETE ON RoomBookings
+   FOR EACH ROW EXECUTE PROCEDURE publish_change();
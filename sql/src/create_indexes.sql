@@ -0,0 +1,2 @@
+--availability lookups and calendars scan the bookings of one hotel over a date range
+CREATE INDEX roombookings_hotel_date_idx ON RoomBookings(hotelID, bookingDate);
@@ -0,0 +1,44 @@
+DROP TABLE IF EXISTS RoomPriceHistory CASCADE;
+
+--One row per change of a room's price or image, valid from validFrom until the room's next row.
+--The rows of the rooms that existed when this was loaded start at -infinity, as their earlier prices are unknown.
+CREATE TABLE RoomPriceHistory (
+                        hotelID integer NOT NULL,
+                        roomNumber integer NOT NULL,
+                        validFrom timestamp NOT NULL,
+                        price integer NOT NULL,
+                        imageURL char(30),
+                        PRIMARY KEY(hotelID, roomNumber, validFrom),
+                        FOREIGN KEY(hotelID, roomNumber) REFERENCES Rooms(hotelID, roomNumber) ON DELETE CASCADE
+);
+
+--When a room was booked, as opposed to the night it was booked for. NULL for bookings made before this was loaded.
+ALTER TABLE RoomBookings ADD COLUMN IF NOT EXISTS bookedOn timestamp;
+ALTER TABLE RoomBookings ALTER COLUMN bookedOn SET DEFAULT now();
+
+CREATE OR REPLACE FUNCTION record_room_price()
+RETURNS trigger AS $price$
+BEGIN
+   IF TG_OP = 'UPDATE' AND OLD.price = NEW.price AND OLD.imageURL IS NOT DISTINCT FROM NEW.imageURL THEN
+      RETURN NULL;
+   END IF;
+   --a second change in the same transaction replaces the first
+   INSERT INTO RoomPriceHistory VALUES (NEW.hotelID, NEW.roomNumber, now(), NEW.price, NEW.imageURL)
+   ON CONFLICT (hotelID, roomNumber, validFrom) DO UPDATE SET price = EXCLUDED.price, imageURL = EXCLUDED.imageURL;
+   RETURN NULL;
+END;
+$price$ LANGUAGE plpgsql;
+
+CREATE TRIGGER rooms_price_history AFTER INSERT OR UPDATE OF price, imageURL ON Rooms
+   FOR EACH ROW EXECUTE PROCEDURE record_room_price();
+
+--The price of a room at a point in time, or NULL before its first known price. Reads one index entry.
+CREATE OR REPLACE FUNCTION room_price_at(h integer, r integer, t timestamp)
+RETURNS integer AS $asof$
+   SELECT price FROM RoomPriceHistory
+   WHERE hotelID = h AND roomNumber = r AND validFrom <= t
+   ORDER BY validFrom DESC
+   LIMIT 1;
+$asof$ LANGUAGE sql STABLE;
+
+INSERT INTO RoomPriceHistory SELECT hotelID, roomNumber, '-infinity', price, imageURL FROM Rooms;
@@ -0,0 +1,92 @@
+DROP TABLE IF EXISTS HotelDailyRollup CASCADE;
+DROP TABLE IF EXISTS HotelMonthlyRollup CASCADE;
+DROP TABLE IF EXISTS RollupRoomPrice CASCADE;
+DROP TABLE IF EXISTS RollupPending CASCADE;
+
+--Per hotel aggregates. revenue is room-nights times the current price of each room.
+CREATE TABLE HotelDailyRollup (
+                        hotelID integer NOT NULL,
+                        day date NOT NULL,
+                        roomNights integer NOT NULL,
+                        revenue bigint NOT NULL,
+                        repairRoomDays integer NOT NULL,
+                        PRIMARY KEY(hotelID, day)
+);
+
+CREATE TABLE HotelMonthlyRollup (
+                        hotelID integer NOT NULL,
+                        month date NOT NULL,  ---first day of the month
+                        roomNights integer NOT NULL,
+                        revenue bigint NOT NULL,
+                        repairRoomDays integer NOT NULL,
+                        PRIMARY KEY(hotelID, month)
+);
+
+--The price each room's rolled up nights are valued at; differences to Rooms.price are applied on refresh.
+CREATE TABLE RollupRoomPrice (
+                        hotelID integer NOT NULL,
+                        roomNumber integer NOT NULL,
+                        price integer NOT NULL,
+                        PRIMARY KEY(hotelID, roomNumber)
+);
+
+--Changes not rolled up yet. kind is 'B' for a booking, 'R' for a repair (delta +1 or -1) and 'P' for a price change.
+CREATE TABLE RollupPending (
+                        pendingID bigserial,
+                        kind char(1) NOT NULL,
+                        hotelID integer NOT NULL,
+                        roomNumber integer NOT NULL,
+                        day date,
+                        delta integer NOT NULL,
+                        PRIMARY KEY(pendingID)
+);
+
+CREATE OR REPLACE FUNCTION rollup_capture()
+RETURNS trigger AS $rollup$
+BEGIN
+   IF TG_TABLE_NAME = 'rooms' THEN
+      INSERT INTO RollupPending (kind, hotelID, roomNumber, delta) VALUES ('P', NEW.hotelID, NEW.roomNumber, 0);
+   ELSIF TG_TABLE_NAME = 'roombookings' THEN
+      IF TG_OP <> 'INSERT' THEN
+         INSERT INTO RollupPending (kind, hotelID, roomNumber, day, delta) VALUES ('B', OLD.hotelID, OLD.roomNumber, OLD.bookingDate, -1);
+      END IF;
+      IF TG_OP <> 'DELETE' THEN
+         INSERT INTO RollupPending (kind, hotelID, roomNumber, day, delta) VALUES ('B', NEW.hotelID, NEW.roomNumber, NEW.bookingDate, 1);
+      END IF;
+   ELSE
+      IF TG_OP <> 'INSERT' THEN
+         INSERT INTO RollupPending (kind, hotelID, roomNumber, day, delta) VALUES ('R', OLD.hotelID, OLD.roomNumber, OLD.repairDate, -1);
+      END IF;
+      IF TG_OP <> 'DELETE' THEN
+         INSERT INTO RollupPending (kind, hotelID, roomNumber, day, delta) VALUES ('R', NEW.hotelID, NEW.roomNumber, NEW.repairDate, 1);
+      END IF;
+   END IF;
+   RETURN NULL;
+END;
+$rollup$ LANGUAGE plpgsql;
+
+CREATE TRIGGER rooms_rollup AFTER UPDATE OF price ON Rooms
+   FOR EACH ROW WHEN (OLD.price IS DISTINCT FROM NEW.price) EXECUTE PROCEDURE rollup_capture();
+CREATE TRIGGER roombookings_rollup AFTER INSERT OR UPDATE OR DELETE ON RoomBookings
+   FOR EACH ROW EXECUTE PROCEDURE rollup_capture();
+CREATE TRIGGER roomrepairs_rollup AFTER INSERT OR UPDATE OR DELETE ON RoomRepairs
+   FOR EACH ROW EXECUTE PROCEDURE rollup_capture();
+
+--What HotelDailyRollup holds when it is up to date, computed from the base tables.
+CREATE OR REPLACE VIEW HotelDailyRecompute AS
+SELECT hotelID, day, SUM(roomNights)::integer AS roomNights, SUM(revenue)::bigint AS revenue, SUM(repairRoomDays)::integer AS repairRoomDays
+FROM (SELECT RB.hotelID, RB.bookingDate AS day, 1 AS roomNights, R.price AS revenue, 0 AS repairRoomDays
+      FROM RoomBookings RB, Rooms R
+      WHERE RB.hotelID = R.hotelID AND RB.roomNumber = R.roomNumber
+      UNION ALL
+      SELECT hotelID, repairDate, 0, 0, 1
+      FROM RoomRepairs) X
+GROUP BY hotelID, day;
+
+--initial build
+INSERT INTO RollupRoomPrice SELECT hotelID, roomNumber, price FROM Rooms;
+INSERT INTO HotelDailyRollup SELECT * FROM HotelDailyRecompute;
+INSERT INTO HotelMonthlyRollup
+SELECT hotelID, date_trunc('month', day)::date, SUM(roomNights), SUM(revenue), SUM(repairRoomDays)
+FROM HotelDailyRollup
+GROUP BY hotelID, date_trunc('month', day)::date;
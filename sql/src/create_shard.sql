@@ -0,0 +1,35 @@
+--Keeps the hotels of one shard. Run with psql -v shard=<k> -v shards=<n> on every shard, after create_db.sh loaded all the data.
+
+--The directory of ShardRouter. Only shard 0's is read; it is filled from the full data before the deletes below.
+DROP TABLE IF EXISTS HotelShards CASCADE;
+CREATE TABLE HotelShards (
+                        hotelID integer NOT NULL,
+                        shard integer NOT NULL,
+                        PRIMARY KEY(hotelID)
+);
+INSERT INTO HotelShards SELECT hotelID, hotelID % :shards FROM Hotel WHERE :shard = 0;
+
+--Users and MaintenanceCompany stay on every shard.
+DELETE FROM RoomRepairRequests WHERE repairID IN (SELECT repairID FROM RoomRepairs WHERE hotelID % :shards <> :shard);
+DELETE FROM RoomRepairs WHERE hotelID % :shards <> :shard;
+DELETE FROM RoomBookings WHERE hotelID % :shards <> :shard;
+DELETE FROM RoomUpdatesLog WHERE hotelID % :shards <> :shard;
+DELETE FROM Rooms WHERE hotelID % :shards <> :shard;
+DELETE FROM Hotel WHERE hotelID % :shards <> :shard;
+
+--Shard k numbers new bookings, repairs, requests and updates k, k + 64, k + 128, ... above every number in use,
+--so rows keep their keys when ShardRebalancer moves them. Up to 64 shards.
+SELECT set_config('shard.index', :'shard', false);
+DO $shard$
+DECLARE
+   s record;
+   base bigint;
+BEGIN
+   FOR s IN SELECT * FROM (VALUES ('roombookings_bookingid_seq'), ('roomrepairs_repairid_seq'),
+                                  ('roomrepairrequests_requestnumber_seq'), ('roomupdateslog_updatenumber_seq')) AS T(name) LOOP
+      SELECT last_value INTO base FROM pg_sequences WHERE sequencename = s.name;
+      base := (COALESCE(base, 0) / 64 + 1) * 64 + current_setting('shard.index')::integer;
+      EXECUTE format('ALTER SEQUENCE %I INCREMENT BY 64 RESTART WITH %s', s.name, base);
+   END LOOP;
+END;
+$shard$;
@@ -1,7 +1,7 @@
 COPY Users
 FROM '/extra/akaat001/project/data/users.csv' 
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE users_userID_seq RESTART 101; 
+SELECT setval('users_userid_seq', (SELECT MAX(userID) FROM Users)); 
 
 COPY Hotel
 FROM '/extra/akaat001/project/data/hotels.csv'
@@ -18,19 +18,19 @@ WITH DELIMITER ',' CSV HEADER;
 COPY RoomBookings
 FROM '/extra/akaat001/project/data/bookings.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE RoomBookings_bookingID_seq RESTART 501; 
+SELECT setval('roombookings_bookingid_seq', (SELECT MAX(bookingID) FROM RoomBookings)); 
 
 COPY RoomRepairs
 FROM '/extra/akaat001/project/data/roomRepairs.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE roomRepairs_repairID_seq RESTART 11;
+SELECT setval('roomrepairs_repairid_seq', (SELECT MAX(repairID) FROM RoomRepairs));
 
 COPY RoomRepairRequests
 FROM '/extra/akaat001/project/data/roomRepairRequests.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE roomRepairRequests_requestNumber_seq RESTART 11;
+SELECT setval('roomrepairrequests_requestnumber_seq', (SELECT MAX(requestNumber) FROM RoomRepairRequests));
 
 COPY RoomUpdatesLog
 FROM '/extra/akaat001/project/data/roomUpdatesLog.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE roomUpdatesLog_updateNumber_seq RESTART 51;
+SELECT setval('roomupdateslog_updatenumber_seq', (SELECT MAX(updateNumber) FROM RoomUpdatesLog));